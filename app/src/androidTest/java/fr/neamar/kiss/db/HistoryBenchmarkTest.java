@@ -0,0 +1,220 @@
+package fr.neamar.kiss.db;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static androidx.test.InstrumentationRegistry.getArguments;
+import static androidx.test.InstrumentationRegistry.getInstrumentation;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Time the history methods of DBHelper on a large synthetic history, without (schema v6)
+ * then with (schema v7) the history indexes, checking their results against the equivalent
+ * SQL queries. Timings are logged with the "DBBenchmark" tag.
+ * <p>
+ * Not part of the default run, enable it with
+ * {@code ./gradlew connectedAndroidTest -Pandroid.testInstrumentationRunnerArguments.benchmark=true}
+ */
+@LargeTest
+public class HistoryBenchmarkTest {
+    private static final String TAG = "DBBenchmark";
+    private static final String DB_NAME = "benchmark.s3db";
+    private static final int ROWS = 500000;
+    private static final int RECORDS = 300;
+    private static final int LIMIT = 50;
+
+    private Context context;
+    private SQLiteDatabase db;
+
+    @Before
+    public void setUp() {
+        assumeTrue("true".equals(getArguments().getString("benchmark")));
+
+        context = getInstrumentation().getTargetContext();
+        context.deleteDatabase(DB_NAME);
+        db = new DB(context, DB_NAME).getWritableDatabase();
+        db.enableWriteAheadLogging();
+        fillHistory(db);
+        DBHelper.setDatabase(db);
+    }
+
+    @After
+    public void tearDown() {
+        if (db == null) {
+            return;
+        }
+        DBHelper.setDatabase(null);
+        db.close();
+        context.deleteDatabase(DB_NAME);
+    }
+
+    @Test
+    public void benchmarkHistory() {
+        DB.dropHistoryIndexes(db);
+        run("v6");
+
+        DB.createHistoryIndexes(db);
+        run("v7");
+    }
+
+    private void run(String version) {
+        // Start from a cold state, with nothing loaded in memory yet
+        DBHelper.setDatabase(db);
+        long rows = DatabaseUtils.queryNumEntries(db, "history");
+
+        // Cold: the first read loads the history engine
+        long start = System.nanoTime();
+        ArrayList<ValuedHistoryRecord> frequency = DBHelper.getHistory(context, LIMIT, "frequency", false);
+        log(version, "getHistory(frequency) cold", start);
+        assertEquals(queryRecords("SELECT record FROM history GROUP BY record"
+                + " ORDER BY COUNT(*) DESC, MAX(timeStamp) DESC LIMIT " + LIMIT), records(frequency));
+
+        start = System.nanoTime();
+        ArrayList<ValuedHistoryRecord> recency = DBHelper.getHistory(context, LIMIT, "recency", false);
+        log(version, "getHistory(recency)", start);
+        assertEquals(queryRecords("SELECT record FROM history GROUP BY record"
+                + " ORDER BY MAX(timeStamp) DESC LIMIT " + LIMIT), records(recency));
+
+        for (String mode : new String[]{"frecency", "adaptive"}) {
+            start = System.nanoTime();
+            ArrayList<ValuedHistoryRecord> records = DBHelper.getHistory(context, LIMIT, mode, false);
+            log(version, "getHistory(" + mode + ")", start);
+            assertFalse(mode, records.isEmpty());
+        }
+
+        start = System.nanoTime();
+        int length = DBHelper.getHistoryLength(context);
+        log(version, "getHistoryLength", start);
+        assertEquals(rows, length);
+
+        // Cold: the first query loads the trie
+        start = System.nanoTime();
+        ArrayList<ValuedHistoryRecord> previous = DBHelper.getPreviousResultsForQuery(context, "ab");
+        log(version, "getPreviousResultsForQuery cold", start);
+        start = System.nanoTime();
+        DBHelper.getPreviousResultsForQuery(context, "co");
+        log(version, "getPreviousResultsForQuery", start);
+        assertEquals(10, previous.size());
+        Map<String, Long> counts = queryCounts("SELECT record, COUNT(*) FROM history WHERE query LIKE 'ab%' GROUP BY record");
+        for (ValuedHistoryRecord entry : previous) {
+            assertEquals(entry.record, (long) counts.get(entry.record), entry.value);
+        }
+
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i += 1) {
+            DBHelper.insertHistory(context, "abc", "app://record" + i);
+        }
+        log(version, "insertHistory x100", start);
+        assertEquals(rows + 100, DBHelper.getHistoryLength(context));
+
+        String removed = frequency.get(0).record;
+        start = System.nanoTime();
+        DBHelper.removeFromHistory(context, removed);
+        log(version, "removeFromHistory", start);
+        assertFalse(records(DBHelper.getHistory(context, RECORDS, "frequency", false)).contains(removed));
+
+        // Pending writes are committed when the database is released
+        DBHelper.setDatabase(null);
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "history", "record = ?", new String[]{removed}));
+        assertEquals(0, DatabaseUtils.queryNumEntries(db, "history_daily", "record = ?", new String[]{removed}));
+
+        // What the retention cleanup of the maintenance runs (in one go),
+        // rolled back so that both versions delete the same rows
+        String[] retention = new String[]{Long.toString(System.currentTimeMillis() - 7776000000L)};
+        long deleted = DatabaseUtils.queryNumEntries(db, "history", "timeStamp < ?", retention);
+        db.beginTransaction();
+        try {
+            start = System.nanoTime();
+            int count = db.delete("history", "timeStamp < ?", retention);
+            log(version, "retention delete", start);
+            assertTrue(count > 0);
+            assertEquals(deleted, count);
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private List<String> queryRecords(String sql) {
+        List<String> records = new ArrayList<>();
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                records.add(cursor.getString(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        return records;
+    }
+
+    private Map<String, Long> queryCounts(String sql) {
+        Map<String, Long> counts = new HashMap<>();
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            while (cursor.moveToNext()) {
+                counts.put(cursor.getString(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return counts;
+    }
+
+    private static List<String> records(List<ValuedHistoryRecord> valuedRecords) {
+        List<String> records = new ArrayList<>();
+        for (ValuedHistoryRecord entry : valuedRecords) {
+            records.add(entry.record);
+        }
+        return records;
+    }
+
+    private static void log(String version, String method, long start) {
+        Log.i(TAG, version + " " + method + ": " + (System.nanoTime() - start) / 1000 + "µs");
+    }
+
+    /**
+     * Rows spread over the last six months, a few records being used much more than the others
+     */
+    private static void fillHistory(SQLiteDatabase db) {
+        Random random = new Random(42);
+        long now = System.currentTimeMillis();
+        long sixMonths = 2 * 7776000000L;
+        String[] queries = {"a", "ab", "abc", "b", "ba", "cal", "con", "mes", "map", "pho"};
+
+        SQLiteStatement insert = db.compileStatement("INSERT INTO history (query, record, timeStamp) VALUES (?, ?, ?)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < ROWS; i += 1) {
+                int record = (int) (RECORDS * Math.pow(random.nextDouble(), 3));
+                insert.bindString(1, queries[random.nextInt(queries.length)]);
+                insert.bindString(2, "app://record" + record);
+                insert.bindLong(3, now - sixMonths + sixMonths * i / ROWS);
+                insert.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        insert.close();
+        DB.rollUpHistory(db);
+    }
+}
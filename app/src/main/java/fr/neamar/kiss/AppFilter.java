@@ -0,0 +1,180 @@
+package fr.neamar.kiss;
+
+import android.util.Log;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import fr.neamar.kiss.utils.SnapshotFile;
+
+import static fr.neamar.kiss.utils.SnapshotFile.readString;
+import static fr.neamar.kiss.utils.SnapshotFile.writeString;
+
+/**
+ * Content of the appfilter.xml of an icons pack.
+ * <p>
+ * Large packs list tens of thousands of components, so the parsed content is stored in a binary
+ * file and only parsed again when the pack is updated.
+ */
+class AppFilter {
+    private static final String TAG = "AppFilter";
+
+    private static final int MAGIC = 0x4B495346; // "KISF"
+    /**
+     * To be incremented on every change of the format
+     */
+    private static final int VERSION = 1;
+
+    // drawable of each component
+    final Map<String, String> drawables;
+    // drawables used as background of generated icons
+    final List<String> backImages = new ArrayList<>();
+    // drawable used as mask of generated icons
+    String maskImage = null;
+    // drawable drawn over generated icons
+    String frontImage = null;
+    // scale factor of original icons
+    float factor = 1.0f;
+
+    AppFilter() {
+        this(new HashMap<String, String>());
+    }
+
+    private AppFilter(Map<String, String> drawables) {
+        this.drawables = drawables;
+    }
+
+    /**
+     * Parse the appfilter.xml of an icons pack
+     */
+    static AppFilter parse(XmlPullParser xpp) throws XmlPullParserException, IOException {
+        AppFilter appFilter = new AppFilter();
+        int eventType = xpp.getEventType();
+        while (eventType != XmlPullParser.END_DOCUMENT) {
+            if (eventType == XmlPullParser.START_TAG) {
+                //parse <iconback> xml tags used as backgroud of generated icons
+                if (xpp.getName().equals("iconback")) {
+                    for (int i = 0; i < xpp.getAttributeCount(); i++) {
+                        if (xpp.getAttributeName(i).startsWith("img")) {
+                            appFilter.backImages.add(xpp.getAttributeValue(i));
+                        }
+                    }
+                }
+                //parse <iconmask> xml tags used as mask of generated icons
+                else if (xpp.getName().equals("iconmask")) {
+                    if (xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("img1")) {
+                        appFilter.maskImage = xpp.getAttributeValue(0);
+                    }
+                }
+                //parse <iconupon> xml tags used as front image of generated icons
+                else if (xpp.getName().equals("iconupon")) {
+                    if (xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("img1")) {
+                        appFilter.frontImage = xpp.getAttributeValue(0);
+                    }
+                }
+                //parse <scale> xml tags used as scale factor of original bitmap icon
+                else if (xpp.getName().equals("scale") && xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("factor")) {
+                    appFilter.factor = Float.valueOf(xpp.getAttributeValue(0));
+                }
+                //parse <item> xml tags for custom icons
+                if (xpp.getName().equals("item")) {
+                    String componentName = null;
+                    String drawableName = null;
+
+                    for (int i = 0; i < xpp.getAttributeCount(); i++) {
+                        if (xpp.getAttributeName(i).equals("component")) {
+                            componentName = xpp.getAttributeValue(i);
+                        } else if (xpp.getAttributeName(i).equals("drawable")) {
+                            drawableName = xpp.getAttributeValue(i);
+                        }
+                    }
+                    if (componentName != null && drawableName != null && !appFilter.drawables.containsKey(componentName)) {
+                        appFilter.drawables.put(componentName, drawableName);
+                    }
+                }
+            }
+            eventType = xpp.next();
+        }
+        return appFilter;
+    }
+
+    /**
+     * @param packVersion version of the icons pack the file must have been written for
+     * @return the stored appfilter, or null if there is none for this version
+     */
+    static AppFilter read(File file, long packVersion) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            ByteBuffer buffer = SnapshotFile.map(file);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != packVersion) {
+                return null;
+            }
+
+            float factor = buffer.getFloat();
+            String maskImage = readString(buffer);
+            String frontImage = readString(buffer);
+            int backCount = buffer.getInt();
+            ArrayList<String> backImages = new ArrayList<>(backCount);
+            for (int i = 0; i < backCount; i += 1) {
+                backImages.add(readString(buffer));
+            }
+            int count = buffer.getInt();
+            HashMap<String, String> drawables = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i += 1) {
+                String componentName = readString(buffer);
+                drawables.put(componentName, readString(buffer));
+            }
+
+            AppFilter appFilter = new AppFilter(drawables);
+            appFilter.factor = factor;
+            appFilter.maskImage = maskImage;
+            appFilter.frontImage = frontImage;
+            appFilter.backImages.addAll(backImages);
+            return appFilter;
+        } catch (IOException | RuntimeException e) {
+            // Truncated or corrupted, the pack will be parsed again
+            Log.w(TAG, "Unable to read appfilter cache", e);
+            return null;
+        }
+    }
+
+    /**
+     * @param packVersion version of the icons pack this appfilter was parsed from
+     */
+    void write(File file, final long packVersion) {
+        File directory = file.getParentFile();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create appfilter cache directory");
+            return;
+        }
+
+        SnapshotFile.write(file, output -> {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(packVersion);
+            output.writeFloat(factor);
+            writeString(output, maskImage);
+            writeString(output, frontImage);
+            output.writeInt(backImages.size());
+            for (String backImage : backImages) {
+                writeString(output, backImage);
+            }
+            output.writeInt(drawables.size());
+            for (Map.Entry<String, String> drawable : drawables.entrySet()) {
+                writeString(output, drawable.getKey());
+                writeString(output, drawable.getValue());
+            }
+        });
+    }
+}
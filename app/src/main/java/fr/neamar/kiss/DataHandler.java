@@ -28,6 +28,11 @@ import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
 
 import fr.neamar.kiss.dataprovider.AppProvider;
 import fr.neamar.kiss.dataprovider.ContactsProvider;
@@ -63,10 +68,21 @@ public class DataHandler extends BroadcastReceiver
     final static private List<String> PROVIDER_NAMES = Arrays.asList(
             "app", "contacts", "shortcuts"
     );
+    /**
+     * Workers running the providers of a query concurrently, one per core
+     * (the searcher's own thread runs a provider too)
+     */
+    final static private ExecutorService PROVIDER_POOL = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1)
+    );
     private TagsHandler tagsHandler;
     final private Context context;
     private String currentQuery;
     private final Map<String, ProviderEntry> providers = new HashMap<>();
+    /**
+     * Provider owning the ids of each scheme (e.g. "app://"), filled as ids are looked up
+     */
+    private final Map<String, ProviderEntry> providersByScheme = new ConcurrentHashMap<>();
     public boolean allProvidersHaveLoaded = false;
     private long start;
 
@@ -258,6 +274,7 @@ public class DataHandler extends BroadcastReceiver
 
         // Add empty provider object to list of providers
         this.providers.put(name, entry);
+        this.providersByScheme.clear();
     }
 
     /**
@@ -280,6 +297,7 @@ public class DataHandler extends BroadcastReceiver
 
         // Remove provider from list
         this.providers.remove(name);
+        this.providersByScheme.clear();
     }
 
     /**
@@ -312,6 +330,9 @@ public class DataHandler extends BroadcastReceiver
         } catch (IllegalArgumentException e) {
             e.printStackTrace();
         }
+
+        // Load the icons likely to be displayed next while the user is idle
+        IconWarmUp.start(this.context);
     }
 
     @Override
@@ -328,13 +349,52 @@ public class DataHandler extends BroadcastReceiver
      */
     public void requestResults(String query, Searcher searcher) {
         currentQuery = query;
+
+        ArrayList<IProvider> queried = new ArrayList<>(this.providers.size());
         for (ProviderEntry entry : this.providers.values()) {
-            if (searcher.isCancelled())
-                break;
-            if (entry.provider == null)
-                continue;
+            if (entry.provider != null)
+                queried.add(entry.provider);
+        }
+
+        // Providers are queried concurrently, the last one runs on the current thread
+        ArrayList<Future<?>> futures = new ArrayList<>(queried.size());
+        for (int i = 0; i < queried.size() - 1; i += 1) {
+            final IProvider provider = queried.get(i);
+            futures.add(PROVIDER_POOL.submit(() -> requestProviderResults(provider, query, searcher)));
+        }
+        if (!queried.isEmpty()) {
+            requestProviderResults(queried.get(queried.size() - 1), query, searcher);
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            // Searcher was cancelled while waiting, workers will stop at their next result
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Run a single provider, collecting its best results locally before merging them
+     */
+    private static void requestProviderResults(IProvider provider, String query, Searcher searcher) {
+        if (searcher.isCancelled())
+            return;
+
+        searcher.beginLocalResults();
+        try {
             // Retrieve results for query:
-            entry.provider.requestResults(query, searcher);
+            provider.requestResults(query, searcher);
+        } finally {
+            searcher.mergeLocalResults();
         }
     }
 
@@ -351,8 +411,11 @@ public class DataHandler extends BroadcastReceiver
                 continue;
 
             List<? extends Pojo> pojos = entry.provider.getPojos();
-            if (pojos != null)
-                searcher.addResult(pojos.toArray(new Pojo[0]));
+            if (pojos != null) {
+                for (Pojo pojo : pojos) {
+                    searcher.addResult(pojo, 0);
+                }
+            }
         }
     }
 
@@ -785,11 +848,46 @@ public class DataHandler extends BroadcastReceiver
         }
     }
 
+    /**
+     * Tell the provider owning this record that the record was modified in place
+     *
+     * @param id pojo.id of the modified item
+     */
+    void onPojoChanged(String id) {
+        IProvider provider = getProviderForId(id);
+        if (provider instanceof Provider) {
+            ((Provider<?>) provider).onPojoChanged(id);
+        }
+    }
+
     private Pojo getPojo(String id) {
+        IProvider provider = getProviderForId(id);
+        return provider != null ? provider.findById(id) : null;
+    }
+
+    /**
+     * Find the provider that may know this id, from its scheme
+     *
+     * @return null if no provider handles this id
+     */
+    @Nullable
+    private IProvider getProviderForId(String id) {
+        int schemeEnd = id.indexOf("://");
+        String scheme = schemeEnd != -1 ? id.substring(0, schemeEnd + 3) : null;
+        if (scheme != null) {
+            ProviderEntry entry = providersByScheme.get(scheme);
+            if (entry != null && entry.provider != null) {
+                return entry.provider;
+            }
+        }
+
         // Ask all providers if they know this id
         for (ProviderEntry entry : this.providers.values()) {
             if (entry.provider != null && entry.provider.mayFindById(id)) {
-                return entry.provider.findById(id);
+                if (scheme != null) {
+                    providersByScheme.put(scheme, entry);
+                }
+                return entry.provider;
             }
         }
 
@@ -0,0 +1,411 @@
+package fr.neamar.kiss;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Two levels cache of the rendered icons.
+ * <p>
+ * Decoded bitmaps are kept in memory, up to a fraction of the heap.
+ * Every bitmap is also stored on disk, in a file named after the hash of its key; an index file
+ * maps the full keys to these files, so that two keys can never share an entry.
+ * Disk entries are evicted, least recently used first, once they take too much space.
+ */
+class IconCache {
+    private static final String TAG = "IconCache";
+
+    private static final String INDEX_FILE = "index";
+    private static final int INDEX_MAGIC = 0x4B495349; // "KISI"
+    /**
+     * To be incremented on every change of the index or entries format
+     */
+    private static final int INDEX_VERSION = 1;
+
+    /**
+     * Maximum size of the files on disk, in bytes
+     */
+    private static final long MAX_DISK_SIZE = 16 * 1024 * 1024;
+
+    private final File directory;
+    private final LruCache<String, Bitmap> memoryCache;
+    /**
+     * Disk entries by key, least recently used first. Null until read from the index file.
+     */
+    private LinkedHashMap<String, Entry> entries = null;
+    private long diskSize = 0;
+    /**
+     * Number of removals so far. Removals are rare (package or icons pack changes), so any removal
+     * invalidates every icon being loaded, instead of tracking which keys were removed.
+     */
+    private long removalCount = 0;
+    private int diskHits = 0;
+    private int diskMisses = 0;
+
+    /**
+     * Disk writes are done in the background, one after the other
+     */
+    private final ExecutorService writer = Executors.newSingleThreadExecutor();
+    private boolean isIndexSavePending = false;
+
+    private static class Entry {
+        final String fileName;
+        final long size;
+
+        Entry(String fileName, long size) {
+            this.fileName = fileName;
+            this.size = size;
+        }
+    }
+
+    IconCache(File directory) {
+        this.directory = directory;
+
+        int maxMemorySize = (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+        memoryCache = new LruCache<String, Bitmap>(maxMemorySize) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+        };
+    }
+
+    /**
+     * Get an icon, from memory or else from disk
+     *
+     * @return the bitmap, or null if it was never stored or has been evicted since
+     */
+    Bitmap get(String key) {
+        Bitmap bitmap = memoryCache.get(key);
+        if (bitmap != null) {
+            return bitmap;
+        }
+
+        long generation = getGeneration();
+        File file = getFile(key);
+        if (file != null) {
+            bitmap = BitmapFactory.decodeFile(file.getPath());
+        }
+
+        synchronized (this) {
+            if (bitmap != null) {
+                diskHits += 1;
+                // Unless it was removed while decoding
+                if (getGeneration() == generation) {
+                    memoryCache.put(key, bitmap);
+                }
+            } else {
+                diskMisses += 1;
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Generation of the cache, changed by every removal.
+     * To be read before loading the icon that will be stored, see {@link #put(String, Bitmap, long)}.
+     */
+    synchronized long getGeneration() {
+        return removalCount;
+    }
+
+    /**
+     * Store an icon in memory right away, and on disk in the background.
+     * The icon is dropped if icons were removed since it started loading, it may be outdated.
+     *
+     * @param generation generation of the key before the icon started loading
+     */
+    void put(final String key, final Bitmap bitmap, final long generation) {
+        synchronized (this) {
+            if (getGeneration() != generation) {
+                return;
+            }
+            memoryCache.put(key, bitmap);
+        }
+        writer.execute(() -> store(key, bitmap, generation));
+    }
+
+    /**
+     * Remove all the icons whose key starts with this prefix
+     */
+    synchronized void remove(String keyPrefix) {
+        removalCount += 1;
+
+        for (String key : memoryCache.snapshot().keySet()) {
+            if (key.startsWith(keyPrefix)) {
+                memoryCache.remove(key);
+            }
+        }
+
+        loadIndex();
+        boolean removed = false;
+        Iterator<Map.Entry<String, Entry>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Entry> entry = iterator.next();
+            if (entry.getKey().startsWith(keyPrefix)) {
+                deleteFile(entry.getValue());
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            scheduleIndexSave();
+        }
+    }
+
+    /**
+     * Remove every icon
+     */
+    void clear() {
+        remove("");
+    }
+
+    /**
+     * Free the memory used by decoded icons, disk entries are kept
+     */
+    void trimMemory() {
+        memoryCache.evictAll();
+    }
+
+    /**
+     * @return part of the memory cache used, in percent
+     */
+    int getMemoryUsage() {
+        return (int) (100L * memoryCache.size() / memoryCache.maxSize());
+    }
+
+    /**
+     * @return hit and miss counts of both levels, for debugging
+     */
+    synchronized String getStatistics() {
+        int memoryHits = memoryCache.hitCount();
+        int memoryMisses = memoryCache.missCount();
+        return "memory: " + memoryHits + " hits, " + memoryMisses + " misses (" + getRate(memoryHits, memoryMisses) + "%), "
+                + memoryCache.size() / 1024 + "KB; disk: " + diskHits + " hits, " + diskMisses + " misses ("
+                + getRate(diskHits, diskMisses) + "%), " + (entries != null ? entries.size() : 0) + " icons, "
+                + diskSize / 1024 + "KB";
+    }
+
+    private static int getRate(int hits, int misses) {
+        return hits + misses == 0 ? 0 : 100 * hits / (hits + misses);
+    }
+
+    /**
+     * @return the file of this key, or null if it's not on disk
+     */
+    private synchronized File getFile(String key) {
+        loadIndex();
+        Entry entry = entries.get(key);
+        return entry != null ? new File(directory, entry.fileName) : null;
+    }
+
+    /**
+     * Encode the icon in its file and record it in the index. Runs on the writer thread.
+     */
+    private void store(String key, Bitmap bitmap, long generation) {
+        synchronized (this) {
+            // Before creating a file that is not in the index yet
+            loadIndex();
+        }
+
+        String fileName = getFileName(key);
+        File file = new File(directory, fileName);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Unable to create icons cache directory");
+            return;
+        }
+
+        OutputStream output = null;
+        try {
+            output = new BufferedOutputStream(new FileOutputStream(file));
+            // Lossy WebP is much faster to encode than PNG, but keeps transparency only since Android 4.3
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                bitmap.compress(CompressFormat.WEBP, 90, output);
+            } else {
+                bitmap.compress(CompressFormat.PNG, 100, output);
+            }
+            output.close();
+            output = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to store icon in cache", e);
+            closeQuietly(output);
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (getGeneration() != generation) {
+                // Removed while it was written
+                if (!file.delete()) {
+                    Log.w(TAG, "Failed to delete file: " + fileName);
+                }
+                return;
+            }
+            loadIndex();
+            Entry previous = entries.put(key, new Entry(fileName, file.length()));
+            if (previous != null) {
+                diskSize -= previous.size;
+            }
+            diskSize += file.length();
+            evict();
+            scheduleIndexSave();
+        }
+    }
+
+    /**
+     * Delete the least recently used entries until the disk cache is small enough
+     */
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (diskSize > MAX_DISK_SIZE && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            deleteFile(entry);
+            iterator.remove();
+        }
+    }
+
+    private void deleteFile(Entry entry) {
+        diskSize -= entry.size;
+        if (!new File(directory, entry.fileName).delete()) {
+            Log.w(TAG, "Failed to delete file: " + entry.fileName);
+        }
+    }
+
+    /**
+     * Save the index once the pending writes are done, access order changes are saved with it
+     */
+    private void scheduleIndexSave() {
+        if (isIndexSavePending) {
+            return;
+        }
+        isIndexSavePending = true;
+        writer.execute(this::saveIndex);
+    }
+
+    private void saveIndex() {
+        File temporaryFile = new File(directory, INDEX_FILE + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+            synchronized (this) {
+                isIndexSavePending = false;
+                output.writeInt(INDEX_MAGIC);
+                output.writeInt(INDEX_VERSION);
+                output.writeInt(entries.size());
+                for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                    output.writeUTF(entry.getKey());
+                    output.writeUTF(entry.getValue().fileName);
+                    output.writeLong(entry.getValue().size);
+                }
+            }
+            output.close();
+            output = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to save icons cache index", e);
+            closeQuietly(output);
+            return;
+        }
+
+        if (!temporaryFile.renameTo(new File(directory, INDEX_FILE))) {
+            Log.w(TAG, "Unable to replace icons cache index");
+        }
+    }
+
+    /**
+     * Read the index on first use. Files missing from it (e.g. older formats) are deleted.
+     */
+    private void loadIndex() {
+        if (entries != null) {
+            return;
+        }
+
+        entries = new LinkedHashMap<>(64, 0.75f, true);
+        diskSize = 0;
+        DataInputStream input = null;
+        try {
+            File indexFile = new File(directory, INDEX_FILE);
+            if (indexFile.isFile()) {
+                input = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                if (input.readInt() == INDEX_MAGIC && input.readInt() == INDEX_VERSION) {
+                    int count = input.readInt();
+                    for (int i = 0; i < count; i += 1) {
+                        String key = input.readUTF();
+                        Entry entry = new Entry(input.readUTF(), input.readLong());
+                        entries.put(key, entry);
+                        diskSize += entry.size;
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read icons cache index", e);
+            entries.clear();
+            diskSize = 0;
+        } finally {
+            closeQuietly(input);
+        }
+
+        File[] files = directory.listFiles();
+        if (files != null) {
+            HashSet<String> fileNames = new HashSet<>(entries.size() * 2);
+            for (Entry entry : entries.values()) {
+                fileNames.add(entry.fileName);
+            }
+            for (File file : files) {
+                String name = file.getName();
+                if (!name.startsWith(INDEX_FILE) && !fileNames.contains(name) && !file.delete()) {
+                    Log.w(TAG, "Failed to delete file: " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return file name made of the SHA-1 of the key
+     */
+    private static String getFileName(String key) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder name = new StringBuilder(hash.length * 2 + 4);
+            for (byte b : hash) {
+                name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return name.append(".img").toString();
+        } catch (NoSuchAlgorithmException | IOException e) {
+            // Can't happen, SHA-1 and UTF-8 are always available
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package fr.neamar.kiss;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Process;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import fr.neamar.kiss.pojo.AppPojo;
+import fr.neamar.kiss.pojo.Pojo;
+
+/**
+ * Load the icons most likely to be displayed into the icons cache, before they are displayed:
+ * the top of the history first, then the favorites, then all the apps from A to Z.
+ * <p>
+ * Runs on a background thread within a budget: it sleeps to only use part of a core, stops once
+ * the icons fill part of the memory cache, and pauses while the user is typing.
+ * Only one warm-up runs at a time, a new one cancels the previous one.
+ */
+class IconWarmUp implements Runnable {
+    private static final String TAG = "IconWarmUp";
+
+    /**
+     * Number of history items loaded first
+     */
+    private static final int HISTORY_COUNT = 50;
+    /**
+     * The warm-up waits until no key was typed for this long
+     */
+    private static final int TYPING_PAUSE_MS = 1000;
+
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+    private static IconWarmUp current = null;
+
+    private static volatile long lastTypingTime = 0;
+
+    private final Context context;
+    /**
+     * Part of a core that can be used, in percent
+     */
+    private final int cpuBudget;
+    /**
+     * Part of the icons memory cache that can be filled, in percent
+     */
+    private final int memoryBudget;
+    private volatile boolean isCancelled = false;
+
+    private IconWarmUp(Context context, int cpuBudget, int memoryBudget) {
+        this.context = context.getApplicationContext();
+        this.cpuBudget = cpuBudget;
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Start the warm-up in the background, if enabled.
+     * The "icons-warm-up" preference sets the budget.
+     */
+    static synchronized void start(Context context) {
+        if (current != null) {
+            current.isCancelled = true;
+            current = null;
+        }
+
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String level = prefs.getString("icons-warm-up", "light");
+
+        if ("full".equals(level)) {
+            current = new IconWarmUp(context, 50, 100);
+        } else if ("light".equals(level)) {
+            current = new IconWarmUp(context, 20, 50);
+        } else {
+            return;
+        }
+        EXECUTOR.execute(current);
+    }
+
+    /**
+     * Called on every key typed, to leave the CPU to the search
+     */
+    static void onUserTyping() {
+        lastTypingTime = SystemClock.elapsedRealtime();
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        long start = SystemClock.elapsedRealtime();
+
+        KissApplication application = KissApplication.getApplication(context);
+        IconsHandler iconsHandler = application.getIconsHandler();
+        List<AppPojo> apps = getApps(application.getDataHandler());
+
+        int count = 0;
+        for (AppPojo app : apps) {
+            // Icons loaded past the budget would only evict the previous ones
+            if (isCancelled || iconsHandler.getCacheMemoryUsage() >= memoryBudget) {
+                break;
+            }
+            waitForTyping();
+
+            long iconStart = SystemClock.elapsedRealtime();
+            iconsHandler.getDrawableIconForPackage(new ComponentName(app.packageName, app.activityName), app.userHandle);
+            count += 1;
+
+            // Sleep long enough to only use the CPU budget
+            long duration = SystemClock.elapsedRealtime() - iconStart;
+            SystemClock.sleep(duration * (100 - cpuBudget) / cpuBudget);
+        }
+
+        Log.v(TAG, "Loaded " + count + " icons in " + (SystemClock.elapsedRealtime() - start) + "ms, "
+                + iconsHandler.getCacheStatistics());
+    }
+
+    /**
+     * @return apps in the order their icons will likely be displayed in, without duplicates
+     */
+    private List<AppPojo> getApps(DataHandler dataHandler) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String historyMode = prefs.getString("history-mode", "recency");
+
+        LinkedHashSet<AppPojo> apps = new LinkedHashSet<>();
+        addApps(apps, dataHandler.getHistory(context, HISTORY_COUNT, historyMode, false, Collections.<String>emptySet()));
+        addApps(apps, dataHandler.getFavorites());
+
+        List<AppPojo> drawer = dataHandler.getApplicationsWithoutExcluded();
+        if (drawer != null) {
+            drawer = new ArrayList<>(drawer);
+            Collections.sort(drawer, new Comparator<AppPojo>() {
+                @Override
+                public int compare(AppPojo a, AppPojo b) {
+                    return a.getName().compareToIgnoreCase(b.getName());
+                }
+            });
+            apps.addAll(drawer);
+        }
+        return new ArrayList<>(apps);
+    }
+
+    private static void addApps(LinkedHashSet<AppPojo> apps, List<Pojo> pojos) {
+        for (Pojo pojo : pojos) {
+            if (pojo instanceof AppPojo) {
+                apps.add((AppPojo) pojo);
+            }
+        }
+    }
+
+    private static void waitForTyping() {
+        long wait;
+        while ((wait = lastTypingTime + TYPING_PAUSE_MS - SystemClock.elapsedRealtime()) > 0) {
+            SystemClock.sleep(wait);
+        }
+    }
+}
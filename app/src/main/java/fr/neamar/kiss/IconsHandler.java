@@ -1,5 +1,6 @@
 package fr.neamar.kiss;
 
+import android.app.ActivityManager;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -12,8 +13,6 @@ import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.pm.ResolveInfo;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
-import android.graphics.Bitmap.CompressFormat;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Paint;
 import android.graphics.PorterDuff;
@@ -24,15 +23,11 @@ import android.os.Build;
 import android.preference.PreferenceManager;
 import android.util.Log;
 
-import org.xmlpull.v1.XmlPullParser;
-
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 
 import fr.neamar.kiss.utils.UserHandle;
@@ -46,31 +41,97 @@ public class IconsHandler {
     private static final String TAG = "IconsHandler";
     // map with available icons packs
     private final HashMap<String, String> iconsPacks = new HashMap<>();
-    // map with available drawable for an icons pack
-    private final Map<String, String> packagesDrawables = new HashMap<>();
-    // instance of a resource object of an icon pack
-    private Resources iconPackres;
-    // package name of the icons pack
-    private String iconsPackPackageName;
-    // list of back images available on an icons pack
-    private final List<Bitmap> backImages = new ArrayList<>();
-    // bitmap mask of an icons pack
-    private Bitmap maskImage = null;
-    // front image of an icons pack
-    private Bitmap frontImage = null;
-    // scale factor of an icons pack
-    private float factor = 1.0f;
+    // current icons pack, replaced as a whole so that icons loaded meanwhile never see half of it
+    private volatile IconsPack iconsPack;
     private final PackageManager pm;
     private final Context ctx;
+    // rendered icons, shared by all the handlers so that only one writes on disk
+    private static IconCache iconCache = null;
 
     public IconsHandler(Context ctx) {
         super();
         this.ctx = ctx;
         this.pm = ctx.getPackageManager();
+        synchronized (IconsHandler.class) {
+            if (iconCache == null) {
+                iconCache = new IconCache(getIconsCacheDir());
+            }
+        }
         loadAvailableIconsPacks();
         loadIconsPack();
     }
 
+    /**
+     * Everything needed to draw icons with an icons pack. Never modified once loaded,
+     * so that it can be used by many threads at once.
+     */
+    private static final class IconsPack {
+        // package name of the icons pack, "default" for system icons
+        final String packageName;
+        // last update time of the icons pack, so that cached icons of a previous version are not used
+        final long version;
+        // instance of a resource object of the icons pack, null for system icons or if it can't be read
+        final Resources resources;
+        // parsed appfilter.xml of the icons pack
+        final AppFilter appFilter;
+        // images used to generate icons, decoded when the first icon is generated
+        private PackImages images = null;
+
+        IconsPack(String packageName, long version, Resources resources, AppFilter appFilter) {
+            this.packageName = packageName;
+            this.version = version;
+            this.resources = resources;
+            this.appFilter = appFilter;
+        }
+
+        boolean isDefault() {
+            return packageName.equalsIgnoreCase("default");
+        }
+
+        synchronized PackImages getImages() {
+            if (images == null) {
+                images = new PackImages(this);
+            }
+            return images;
+        }
+
+        Bitmap loadBitmap(String drawableName) {
+            int id = resources.getIdentifier(drawableName, "drawable", packageName);
+            if (id > 0) {
+                Drawable bitmap = resources.getDrawable(id);
+                if (bitmap instanceof BitmapDrawable) {
+                    return ((BitmapDrawable) bitmap).getBitmap();
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Images of an icons pack used to generate icons of the apps it doesn't have
+     */
+    private static final class PackImages {
+        // list of back images available on an icons pack
+        final List<Bitmap> backImages;
+        // bitmap mask of an icons pack
+        final Bitmap maskImage;
+        // front image of an icons pack
+        final Bitmap frontImage;
+
+        PackImages(IconsPack pack) {
+            List<Bitmap> backImages = new ArrayList<>();
+            for (String drawableName : pack.appFilter.backImages) {
+                Bitmap iconback = pack.loadBitmap(drawableName);
+                if (iconback != null) {
+                    backImages.add(iconback);
+                }
+            }
+            this.backImages = Collections.unmodifiableList(backImages);
+            this.maskImage = pack.appFilter.maskImage != null ? pack.loadBitmap(pack.appFilter.maskImage) : null;
+            this.frontImage = pack.appFilter.frontImage != null ? pack.loadBitmap(pack.appFilter.frontImage) : null;
+        }
+    }
+
     /**
      * Load configured icons pack
      */
@@ -87,100 +148,46 @@ public class IconsHandler {
      * @param packageName Android package ID of the package to parse
      */
     void loadIconsPack(String packageName) {
+        // Cached icons of other packs (or versions) have different keys, they are evicted over time
+        iconsPack = createIconsPack(packageName);
+    }
 
-        //clear icons pack
-        iconsPackPackageName = packageName;
-        packagesDrawables.clear();
-        backImages.clear();
-        cacheClear();
-
+    private IconsPack createIconsPack(String packageName) {
         // system icons, nothing to do
-        if (iconsPackPackageName.equalsIgnoreCase("default")) {
-            return;
+        if (packageName.equalsIgnoreCase("default")) {
+            return new IconsPack(packageName, 0, null, new AppFilter());
         }
 
-        XmlPullParser xpp = null;
-
+        long version = 0;
+        Resources resources = null;
+        AppFilter appFilter = null;
         try {
-            // search appfilter.xml into icons pack apk resource folder
-            iconPackres = pm.getResourcesForApplication(iconsPackPackageName);
-            int appfilterid = iconPackres.getIdentifier("appfilter", "xml", iconsPackPackageName);
-            if (appfilterid > 0) {
-                xpp = iconPackres.getXml(appfilterid);
-            }
-
-            if (xpp != null) {
-                int eventType = xpp.getEventType();
-                while (eventType != XmlPullParser.END_DOCUMENT) {
-                    if (eventType == XmlPullParser.START_TAG) {
-                        //parse <iconback> xml tags used as backgroud of generated icons
-                        if (xpp.getName().equals("iconback")) {
-                            for (int i = 0; i < xpp.getAttributeCount(); i++) {
-                                if (xpp.getAttributeName(i).startsWith("img")) {
-                                    String drawableName = xpp.getAttributeValue(i);
-                                    Bitmap iconback = loadBitmap(drawableName);
-                                    if (iconback != null) {
-                                        backImages.add(iconback);
-                                    }
-                                }
-                            }
-                        }
-                        //parse <iconmask> xml tags used as mask of generated icons
-                        else if (xpp.getName().equals("iconmask")) {
-                            if (xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("img1")) {
-                                String drawableName = xpp.getAttributeValue(0);
-                                maskImage = loadBitmap(drawableName);
-                            }
-                        }
-                        //parse <iconupon> xml tags used as front image of generated icons
-                        else if (xpp.getName().equals("iconupon")) {
-                            if (xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("img1")) {
-                                String drawableName = xpp.getAttributeValue(0);
-                                frontImage = loadBitmap(drawableName);
-                            }
-                        }
-                        //parse <scale> xml tags used as scale factor of original bitmap icon
-                        else if (xpp.getName().equals("scale") && xpp.getAttributeCount() > 0 && xpp.getAttributeName(0).equals("factor")) {
-                            factor = Float.valueOf(xpp.getAttributeValue(0));
-                        }
-                        //parse <item> xml tags for custom icons
-                        if (xpp.getName().equals("item")) {
-                            String componentName = null;
-                            String drawableName = null;
-
-                            for (int i = 0; i < xpp.getAttributeCount(); i++) {
-                                if (xpp.getAttributeName(i).equals("component")) {
-                                    componentName = xpp.getAttributeValue(i);
-                                } else if (xpp.getAttributeName(i).equals("drawable")) {
-                                    drawableName = xpp.getAttributeValue(i);
-                                }
-                            }
-                            if (!packagesDrawables.containsKey(componentName)) {
-                                packagesDrawables.put(componentName, drawableName);
-                            }
-                        }
-                    }
-                    eventType = xpp.next();
+            version = pm.getPackageInfo(packageName, 0).lastUpdateTime;
+            resources = pm.getResourcesForApplication(packageName);
+
+            // Only parse appfilter.xml when the pack was installed or updated since last time
+            File appFilterFile = new File(ctx.getCacheDir(), "appfilter/" + packageName);
+            appFilter = AppFilter.read(appFilterFile, version);
+            if (appFilter == null) {
+                // search appfilter.xml into icons pack apk resource folder
+                int appfilterid = resources.getIdentifier("appfilter", "xml", packageName);
+                if (appfilterid > 0) {
+                    long start = System.nanoTime();
+                    appFilter = AppFilter.parse(resources.getXml(appfilterid));
+                    Log.i(TAG, "Parsed appfilter.xml of " + packageName + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+                } else {
+                    appFilter = new AppFilter();
                 }
+                appFilter.write(appFilterFile, version);
             }
         } catch (Exception e) {
             Log.e(TAG, "Error parsing appfilter.xml " + e);
         }
 
+        // When the pack can't be read, its appfilter is empty and system icons are used
+        return new IconsPack(packageName, version, resources, appFilter != null ? appFilter : new AppFilter());
     }
 
-    private Bitmap loadBitmap(String drawableName) {
-        int id = iconPackres.getIdentifier(drawableName, "drawable", iconsPackPackageName);
-        if (id > 0) {
-            Drawable bitmap = iconPackres.getDrawable(id);
-            if (bitmap instanceof BitmapDrawable) {
-                return ((BitmapDrawable) bitmap).getBitmap();
-            }
-        }
-        return null;
-    }
-
-
     private Drawable getDefaultAppDrawable(ComponentName componentName, UserHandle userHandle) {
         try {
             if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -207,19 +214,59 @@ public class IconsHandler {
     /**
      * Get or generate icon for an app
      */
-    @SuppressWarnings("CatchAndPrintStackTrace")
     public Drawable getDrawableIconForPackage(ComponentName componentName, UserHandle userHandle) {
+        // The pack may be replaced meanwhile, the icon and its key must use the same one
+        IconsPack pack = iconsPack;
+
+        // Search first in cache
+        String cacheKey = getCacheKey(componentName, userHandle, pack);
+        // Icons loaded before the package changed are not cached
+        long generation = iconCache.getGeneration();
+        Bitmap cached = iconCache.get(cacheKey);
+        if (cached != null) {
+            return new BitmapDrawable(ctx.getResources(), cached);
+        }
+
+        Drawable icon = loadDrawableIconForPackage(componentName, userHandle, pack);
+        if (icon == null) {
+            return null;
+        }
+        // Cached icons are bitmaps, render the other ones (e.g. adaptive icons) so that all look the same
+        Bitmap bitmap = getBitmap(icon);
+        iconCache.put(cacheKey, bitmap, generation);
+        return new BitmapDrawable(ctx.getResources(), bitmap);
+    }
+
+    /**
+     * @return the bitmap of the icon, drawn at the size of launcher icons if it's not a bitmap
+     */
+    private Bitmap getBitmap(Drawable icon) {
+        if (icon instanceof BitmapDrawable && ((BitmapDrawable) icon).getBitmap() != null) {
+            return ((BitmapDrawable) icon).getBitmap();
+        }
+
+        ActivityManager activityManager = (ActivityManager) ctx.getSystemService(Context.ACTIVITY_SERVICE);
+        int size = activityManager.getLauncherLargeIconSize();
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        icon.setBounds(0, 0, size, size);
+        icon.draw(canvas);
+        return bitmap;
+    }
+
+    @SuppressWarnings("CatchAndPrintStackTrace")
+    private Drawable loadDrawableIconForPackage(ComponentName componentName, UserHandle userHandle, IconsPack pack) {
         // system icons, nothing to do
-        if (iconsPackPackageName.equalsIgnoreCase("default")) {
+        if (pack.isDefault()) {
             return this.getDefaultAppDrawable(componentName, userHandle);
         }
 
-        String drawable = packagesDrawables.get(componentName.toString());
+        String drawable = pack.appFilter.drawables.get(componentName.toString());
         if (drawable != null) { //there is a custom icon
-            int id = iconPackres.getIdentifier(drawable, "drawable", iconsPackPackageName);
+            int id = pack.resources.getIdentifier(drawable, "drawable", pack.packageName);
             if (id > 0) {
                 try {
-                    return iconPackres.getDrawable(id);
+                    return pack.resources.getDrawable(id);
                 } catch (Resources.NotFoundException e) {
                     // Unable to load icon, keep going.
                     e.printStackTrace();
@@ -227,21 +274,18 @@ public class IconsHandler {
             }
         }
 
-        // Search first in cache
-        Drawable systemIcon = cacheGetDrawable(componentName.toString());
-        if (systemIcon != null)
-            return systemIcon;
-
-        systemIcon = this.getDefaultAppDrawable(componentName, userHandle);
+        Drawable systemIcon = this.getDefaultAppDrawable(componentName, userHandle);
         if (systemIcon instanceof BitmapDrawable) {
-            Drawable generated = generateBitmap(systemIcon);
-            cacheStoreDrawable(componentName.toString(), generated);
-            return generated;
+            return generateBitmap(systemIcon, pack);
         }
         return systemIcon;
     }
 
-    private Drawable generateBitmap(Drawable defaultBitmap) {
+    private Drawable generateBitmap(Drawable defaultBitmap, IconsPack pack) {
+        PackImages images = pack.getImages();
+        List<Bitmap> backImages = images.backImages;
+        Bitmap maskImage = images.maskImage;
+        Bitmap frontImage = images.frontImage;
 
         // if no support images in the icon pack return the bitmap itself
         if (backImages.size() == 0) {
@@ -263,7 +307,7 @@ public class IconsHandler {
         canvas.drawBitmap(backImage, 0, 0, null);
 
         // scale original icon
-        Bitmap scaledBitmap = Bitmap.createScaledBitmap(((BitmapDrawable) defaultBitmap).getBitmap(), (int) (w * factor), (int) (h * factor), false);
+        Bitmap scaledBitmap = Bitmap.createScaledBitmap(((BitmapDrawable) defaultBitmap).getBitmap(), (int) (w * pack.appFilter.factor), (int) (h * pack.appFilter.factor), false);
 
         if (maskImage != null) {
             // draw the scaled bitmap with mask
@@ -286,13 +330,14 @@ public class IconsHandler {
             canvas.drawBitmap(frontImage, 0, 0, null);
         }
 
-        return new BitmapDrawable(iconPackres, result);
+        return new BitmapDrawable(pack.resources, result);
     }
 
     /**
      * Scan for installed icons packs
      */
     private void loadAvailableIconsPacks() {
+        iconsPacks.clear();
 
         List<ResolveInfo> launcherthemes = pm.queryIntentActivities(new Intent("fr.neamar.kiss.THEMES"), PackageManager.GET_META_DATA);
         List<ResolveInfo> adwlauncherthemes = pm.queryIntentActivities(new Intent("org.adw.launcher.THEMES"), PackageManager.GET_META_DATA);
@@ -316,72 +361,71 @@ public class IconsHandler {
         return iconsPacks;
     }
 
-    private boolean isDrawableInCache(String key) {
-        File drawableFile = cacheGetFileName(key);
-        return drawableFile.isFile();
-    }
-
-    private void cacheStoreDrawable(String key, Drawable drawable) {
-        if (drawable instanceof BitmapDrawable) {
-            File drawableFile = cacheGetFileName(key);
-            FileOutputStream fos;
-            try {
-                fos = new FileOutputStream(drawableFile);
-                ((BitmapDrawable) drawable).getBitmap().compress(CompressFormat.PNG, 100, fos);
-                fos.flush();
-                fos.close();
-            } catch (Exception e) {
-                Log.e(TAG, "Unable to store drawable in cache " + e);
-            }
+    /**
+     * Forget the cached icons of a package that was installed, updated or removed.
+     * The icons pack is only parsed again when it is the package that changed.
+     *
+     * @param packageName package that changed, null when many packages changed (e.g. media mounted)
+     * @param userHandle  user the package changed for
+     */
+    public void onPackageChanged(String packageName, UserHandle userHandle) {
+        if (packageName == null) {
+            iconCache.clear();
+            loadAvailableIconsPacks();
+            loadIconsPack();
+            return;
         }
-    }
 
-    private Drawable cacheGetDrawable(String key) {
+        iconCache.remove(packageName + "/" + userHandle.getSerial() + "/");
 
-        if (!isDrawableInCache(key)) {
-            return null;
+        // The package may be an icons pack that was just installed or removed
+        if (iconsPacks.containsKey(packageName) || isIconsPack(packageName)) {
+            loadAvailableIconsPacks();
         }
-
-        FileInputStream fis;
-        try {
-            fis = new FileInputStream(cacheGetFileName(key));
-            BitmapDrawable drawable =
-                    new BitmapDrawable(this.ctx.getResources(), BitmapFactory.decodeStream(fis));
-            fis.close();
-            return drawable;
-        } catch (Exception e) {
-            Log.e(TAG, "Unable to get drawable from cache " + e);
+        if (packageName.equals(iconsPack.packageName)) {
+            loadIconsPack();
         }
+    }
 
-        return null;
+    private boolean isIconsPack(String packageName) {
+        Intent intent = new Intent("fr.neamar.kiss.THEMES").setPackage(packageName);
+        Intent adwIntent = new Intent("org.adw.launcher.THEMES").setPackage(packageName);
+        return !pm.queryIntentActivities(intent, 0).isEmpty() || !pm.queryIntentActivities(adwIntent, 0).isEmpty();
     }
 
     /**
-     * create path for icons cache like this
-     * {cacheDir}/icons/{icons_pack_package_name}_{key_hash}.png
+     * Key of the icon of a component for a user, with the current icons pack.
+     * Keys of a package for a user share the same prefix.
      */
-    private File cacheGetFileName(String key) {
-        return new File(getIconsCacheDir() + iconsPackPackageName + "_" + key.hashCode() + ".png");
+    private static String getCacheKey(ComponentName componentName, UserHandle userHandle, IconsPack pack) {
+        return componentName.getPackageName() + "/" + userHandle.getSerial() + "/" + componentName.getClassName()
+                + "/" + pack.packageName + "/" + pack.version;
     }
 
-    private File getIconsCacheDir() {
-        return new File(this.ctx.getCacheDir().getPath() + "/icons/");
+    /**
+     * @return hit and miss counts of the icons cache, for debugging
+     */
+    public String getCacheStatistics() {
+        return iconCache.getStatistics();
     }
 
     /**
-     * Clear cache
+     * @return part of the memory available to cache icons that is used, in percent
      */
-    private void cacheClear() {
-        File cacheDir = this.getIconsCacheDir();
+    int getCacheMemoryUsage() {
+        return iconCache.getMemoryUsage();
+    }
 
-        if (!cacheDir.isDirectory())
-            return;
+    /**
+     * Free the memory used by cached icons, they will be read from disk again
+     */
+    public void trimMemory() {
+        Log.v(TAG, "Trimming icons cache, " + iconCache.getStatistics());
+        iconCache.trimMemory();
+    }
 
-        for (File item : cacheDir.listFiles()) {
-            if (!item.delete()) {
-                Log.w(TAG, "Failed to delete file: " + item.getAbsolutePath());
-            }
-        }
+    private File getIconsCacheDir() {
+        return new File(this.ctx.getCacheDir().getPath() + "/icons/");
     }
 
 }
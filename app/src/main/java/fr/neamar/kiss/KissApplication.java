@@ -4,6 +4,8 @@ import android.app.Application;
 import android.content.Context;
 import android.content.Intent;
 
+import fr.neamar.kiss.db.DBHelper;
+
 public class KissApplication extends Application {
     /**
      * Number of ms to wait, after a click occurred, to record a launch
@@ -51,7 +53,10 @@ public class KissApplication extends Application {
         }
     }
 
-    public IconsHandler getIconsHandler() {
+    /**
+     * Synchronized, as icons are loaded from many threads
+     */
+    public synchronized IconsHandler getIconsHandler() {
         if (iconsPackHandler == null) {
             iconsPackHandler = new IconsHandler(this);
         }
@@ -59,8 +64,16 @@ public class KissApplication extends Application {
         return iconsPackHandler;
     }
 
-    public void resetIconsHandler() {
-        iconsPackHandler = new IconsHandler(this);
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        // Don't keep writes pending when the process may be killed
+        DBHelper.commitPendingWrites();
+
+        // Icons are read from disk again when needed
+        if (level >= TRIM_MEMORY_MODERATE && iconsPackHandler != null) {
+            iconsPackHandler.trimMemory();
+        }
     }
 
 }
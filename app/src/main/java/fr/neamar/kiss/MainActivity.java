@@ -41,6 +41,7 @@ import java.util.ArrayList;
 
 import fr.neamar.kiss.adapter.RecordAdapter;
 import fr.neamar.kiss.broadcast.IncomingCallHandler;
+import fr.neamar.kiss.db.DBHelper;
 import fr.neamar.kiss.forwarder.ForwarderManager;
 import fr.neamar.kiss.searcher.ApplicationsSearcher;
 import fr.neamar.kiss.searcher.HistorySearcher;
@@ -291,6 +292,7 @@ public class MainActivity extends Activity implements QueryInterface, KeyboardSc
                 if (isViewingAllApps()) {
                     displayKissBar(false, false);
                 }
+                IconWarmUp.onUserTyping();
                 String text = s.toString();
                 updateSearchRecords(false, text);
                 displayClearOnInput();
@@ -418,12 +420,16 @@ public class MainActivity extends Activity implements QueryInterface, KeyboardSc
     protected void onPause() {
         super.onPause();
         forwarderManager.onPause();
+        // We may be killed anytime from now on
+        DBHelper.commitPendingWrites();
     }
 
     @Override
     protected void onStop() {
         super.onStop();
         forwarderManager.onStop();
+        // Launcher is idle (in the background or screen off), clean up the database
+        DBHelper.scheduleMaintenance(this);
     }
 
     @Override
@@ -648,7 +654,7 @@ public class MainActivity extends Activity implements QueryInterface, KeyboardSc
             isDisplayingKissBar = true;
 
             searchTask = new ApplicationsSearcher(MainActivity.this);
-            searchTask.executeOnExecutor(Searcher.SEARCH_THREAD);
+            Searcher.SEARCH_SCHEDULER.schedule(searchTask);
 
             // Reveal the bar
             if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
@@ -740,10 +746,11 @@ public class MainActivity extends Activity implements QueryInterface, KeyboardSc
     public void runTask(Searcher task) {
         resetTask();
         searchTask = task;
-        searchTask.executeOnExecutor(Searcher.SEARCH_THREAD);
+        Searcher.SEARCH_SCHEDULER.schedule(searchTask);
     }
 
     public void resetTask() {
+        Searcher.SEARCH_SCHEDULER.cancelPending();
         if (searchTask != null) {
             searchTask.cancel(true);
             searchTask = null;
@@ -33,6 +33,8 @@ public class TagsHandler {
         DBHelper.insertTagsForId(this.context, tags, id);
         // add to cache
         tagsCache.put(id, tags);
+        // search structures built from the previous tags are now outdated
+        KissApplication.getApplication(context).getDataHandler().onPojoChanged(id);
     }
 
     public String getTags(String id) {
@@ -13,7 +13,7 @@ import fr.neamar.kiss.utils.UserHandle;
  * This class gets called when an application is created or removed on the
  * system
  * <p/>
- * We then recreate our data set.
+ * We then update our data set.
  *
  * @author dorvaryn
  */
@@ -43,12 +43,16 @@ public class PackageAddedRemovedHandler extends BroadcastReceiver {
             KissApplication.getApplication(ctx).getDataHandler().removeFromExcluded(packageName);
         }
 
-        KissApplication.getApplication(ctx).resetIconsHandler();
+        KissApplication.getApplication(ctx).getIconsHandler().onPackageChanged(packageName, user);
 
-        // Reload application list
+        // Reload the apps of this package only, or everything when many packages changed (media mounted)
         final AppProvider provider = KissApplication.getApplication(ctx).getDataHandler().getAppProvider();
         if (provider != null) {
-            provider.reload();
+            if (packageName != null) {
+                provider.reloadPackage(packageName, user);
+            } else {
+                provider.reload();
+            }
         }
     }
 
@@ -6,26 +6,82 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.pm.LauncherApps;
+import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.os.Process;
 import android.os.UserManager;
+import android.text.TextUtils;
+import android.util.Log;
+import android.util.Pair;
 
 import androidx.annotation.RequiresApi;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 
 import fr.neamar.kiss.KissApplication;
 import fr.neamar.kiss.broadcast.PackageAddedRemovedHandler;
 import fr.neamar.kiss.loader.LoadAppPojos;
 import fr.neamar.kiss.normalizer.StringNormalizer;
 import fr.neamar.kiss.pojo.AppPojo;
-import fr.neamar.kiss.pojo.Pojo;
 import fr.neamar.kiss.searcher.Searcher;
 import fr.neamar.kiss.utils.FuzzyScore;
+import fr.neamar.kiss.utils.SnapshotFile;
 import fr.neamar.kiss.utils.UserHandle;
 
 public class AppProvider extends Provider<AppPojo> {
+    private static final String TAG = "AppProvider";
+
+    /**
+     * Package events are applied together once none came for this delay...
+     */
+    private static final int PACKAGE_UPDATE_DELAY_MS = 500;
+    /**
+     * ...or once the first one waited for this long
+     */
+    private static final int PACKAGE_UPDATE_MAX_DELAY_MS = 3000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    /**
+     * Packages changed since the last update, with their user
+     */
+    private final Map<String, Pair<String, UserHandle>> pendingPackages = new LinkedHashMap<>();
+    private long firstPendingPackageTime = 0;
+    private final Runnable updatePackages = new Runnable() {
+        @Override
+        public void run() {
+            ArrayList<Pair<String, UserHandle>> packages = new ArrayList<>(pendingPackages.values());
+            pendingPackages.clear();
+
+            loadSequence += 1;
+            LoadAppPojos loader = new LoadAppPojos(AppProvider.this, packages, loadSequence);
+            loader.setProvider(AppProvider.this);
+            loader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+    };
+
+    /**
+     * Loads are numbered in the order they start, so that an older load never replaces the apps of
+     * a newer one: number of the last load started, of the last full load started and applied,
+     * and of the last load applied for the packages updated since that full load
+     */
+    private int loadSequence = 0;
+    private int fullLoadSequence = 0;
+    private int appliedFullLoadSequence = 0;
+    private final Map<String, Integer> packageSequences = new HashMap<>();
+    /**
+     * Packages loaded during the first load, applied once it's over
+     */
+    private final ArrayList<Runnable> deferredPackageLoads = new ArrayList<>();
 
     @Override
     @SuppressLint("NewApi")
@@ -130,7 +186,207 @@ public class AppProvider extends Provider<AppPojo> {
     @Override
     public void reload() {
         super.reload();
-        this.initialize(new LoadAppPojos(this));
+        // A full load replaces every pending package
+        handler.removeCallbacks(updatePackages);
+        pendingPackages.clear();
+        loadSequence += 1;
+        fullLoadSequence = loadSequence;
+        this.initialize(new LoadAppPojos(this, fullLoadSequence));
+
+        if (!isLoaded()) {
+            // Cold start: search the apps of the last run until the real load is over
+            ArrayList<AppPojo> snapshot = AppSnapshot.read(this, getSnapshotFile());
+            if (snapshot != null) {
+                super.loadOver(snapshot);
+            }
+        }
+    }
+
+    /**
+     * Called when every app was listed
+     *
+     * @param sequence number of the load
+     * @param apps     all the apps
+     */
+    public void onAppsLoaded(int sequence, ArrayList<AppPojo> apps) {
+        if (sequence != fullLoadSequence) {
+            // Another full load started since, it will replace this one
+            return;
+        }
+
+        // Packages updated after this load started were listed again since, keep their newer apps
+        Set<String> updatedPackageKeys = new HashSet<>();
+        for (Map.Entry<String, Integer> packageSequence : packageSequences.entrySet()) {
+            if (packageSequence.getValue() > sequence) {
+                updatedPackageKeys.add(packageSequence.getKey());
+            }
+        }
+        if (!updatedPackageKeys.isEmpty()) {
+            ArrayList<AppPojo> merged = new ArrayList<>(apps.size());
+            for (AppPojo app : apps) {
+                if (!updatedPackageKeys.contains(getPackageKey(app.packageName, app.userHandle))) {
+                    merged.add(app);
+                }
+            }
+            for (AppPojo pojo : pojos) {
+                if (updatedPackageKeys.contains(getPackageKey(pojo.packageName, pojo.userHandle))) {
+                    merged.add(pojo);
+                }
+            }
+            apps = merged;
+        }
+        packageSequences.keySet().retainAll(updatedPackageKeys);
+        appliedFullLoadSequence = sequence;
+
+        loadOver(apps);
+
+        ArrayList<Runnable> deferred = new ArrayList<>(deferredPackageLoads);
+        deferredPackageLoads.clear();
+        for (Runnable packageLoad : deferred) {
+            packageLoad.run();
+        }
+    }
+
+    /**
+     * Apply the differences with the loaded apps only, so that unchanged apps keep their pojo
+     * (and everything computed from it)
+     */
+    @Override
+    public void loadOver(ArrayList<AppPojo> results) {
+        if (!isLoaded()) {
+            super.loadOver(results);
+            saveSnapshot();
+            return;
+        }
+
+        HashMap<String, AppPojo> currentById = new HashMap<>(pojos.size() * 2);
+        for (AppPojo pojo : pojos) {
+            currentById.put(pojo.id, pojo);
+        }
+
+        ArrayList<AppPojo> removed = new ArrayList<>();
+        ArrayList<AppPojo> added = new ArrayList<>();
+        for (AppPojo pojo : results) {
+            AppPojo current = currentById.remove(pojo.id);
+            if (current == null || !isSameApp(current, pojo)) {
+                added.add(pojo);
+                if (current != null) {
+                    removed.add(current);
+                }
+            }
+        }
+        // Apps that are not there anymore
+        removed.addAll(currentById.values());
+
+        if (removed.size() + added.size() > results.size() / 2) {
+            // Too many changes (e.g. new locale), start over
+            super.loadOver(results);
+        } else if (!removed.isEmpty() || !added.isEmpty()) {
+            Log.v(TAG, "Reconciled apps: " + removed.size() + " removed, " + added.size() + " added");
+            updatePojos(removed, added);
+        }
+        saveSnapshot();
+    }
+
+    @Override
+    public void onPojoChanged(String id) {
+        super.onPojoChanged(id);
+        saveSnapshot();
+    }
+
+    private static boolean isSameApp(AppPojo a, AppPojo b) {
+        return TextUtils.equals(a.getName(), b.getName())
+                && TextUtils.equals(a.getTags(), b.getTags())
+                && a.isExcluded() == b.isExcluded()
+                && a.isExcludedFromHistory() == b.isExcludedFromHistory();
+    }
+
+    private File getSnapshotFile() {
+        return new File(getCacheDir(), "apps.snapshot");
+    }
+
+    /**
+     * Save the current apps for the next cold start, in the background
+     */
+    private void saveSnapshot() {
+        final List<AppPojo> pojos = this.pojos;
+        final File file = getSnapshotFile();
+        SnapshotFile.WRITER.execute(() -> AppSnapshot.write(file, pojos));
+    }
+
+    /**
+     * Load again the apps of a package that was installed, updated or removed.
+     * Must be called from the main thread.
+     *
+     * @param packageName package that changed
+     * @param user        user the package changed for
+     */
+    public void reloadPackage(String packageName, UserHandle user) {
+        long now = System.currentTimeMillis();
+        if (pendingPackages.isEmpty()) {
+            firstPendingPackageTime = now;
+        }
+        pendingPackages.put(getPackageKey(packageName, user), new Pair<>(packageName, user));
+
+        // During batch updates, wait for the other packages
+        handler.removeCallbacks(updatePackages);
+        long delay = Math.min(PACKAGE_UPDATE_DELAY_MS, firstPendingPackageTime + PACKAGE_UPDATE_MAX_DELAY_MS - now);
+        handler.postDelayed(updatePackages, Math.max(0, delay));
+    }
+
+    /**
+     * Replace the apps of some packages with the ones just loaded
+     *
+     * @param sequence number of the load
+     * @param packages packages that were loaded, with their user
+     * @param apps     apps of these packages, empty for removed packages
+     */
+    public void onPackagesLoaded(int sequence, List<Pair<String, UserHandle>> packages, List<AppPojo> apps) {
+        if (!isLoaded()) {
+            // The apps of the first load are still coming in chunks, they would replace these ones
+            final List<AppPojo> loadedApps = apps;
+            deferredPackageLoads.add(() -> onPackagesLoaded(sequence, packages, loadedApps));
+            return;
+        }
+
+        Set<String> packageKeys = new HashSet<>();
+        for (Pair<String, UserHandle> packageUser : packages) {
+            String packageKey = getPackageKey(packageUser.first, packageUser.second);
+            Integer packageSequence = packageSequences.get(packageKey);
+            if (sequence < appliedFullLoadSequence || (packageSequence != null && sequence < packageSequence)) {
+                // The apps of this package were listed again since
+                continue;
+            }
+            packageSequences.put(packageKey, sequence);
+            packageKeys.add(packageKey);
+        }
+        if (packageKeys.isEmpty()) {
+            return;
+        }
+        if (packageKeys.size() < packages.size()) {
+            ArrayList<AppPojo> newerApps = new ArrayList<>(apps.size());
+            for (AppPojo app : apps) {
+                if (packageKeys.contains(getPackageKey(app.packageName, app.userHandle))) {
+                    newerApps.add(app);
+                }
+            }
+            apps = newerApps;
+        }
+
+        ArrayList<AppPojo> removed = new ArrayList<>();
+        for (AppPojo pojo : pojos) {
+            if (packageKeys.contains(getPackageKey(pojo.packageName, pojo.userHandle))) {
+                removed.add(pojo);
+            }
+        }
+
+        Log.v(TAG, "Updating " + packageKeys.size() + " packages: " + removed.size() + " apps removed, " + apps.size() + " apps added");
+        updatePojos(removed, apps);
+        saveSnapshot();
+    }
+
+    private static String getPackageKey(String packageName, UserHandle user) {
+        return user.addUserSuffixToString(packageName, '/');
     }
 
     /**
@@ -147,57 +403,66 @@ public class AppProvider extends Provider<AppPojo> {
         }
 
         FuzzyScore fuzzyScore = new FuzzyScore(queryNormalized.codePoints);
-        FuzzyScore.MatchInfo matchInfo;
-        boolean match;
+        List<AppPojo> pojos = this.pojos;
+        List<AppPojo> candidates = getCandidates(pojos, queryNormalized);
+        // Excluded apps are kept as survivors, they may be included back before the next query
+        ArrayList<AppPojo> survivors = new ArrayList<>();
+
+        // Score all names in one go, tags are only checked afterwards
+        int[][] names = new int[candidates.size()][];
+        for (int i = 0; i < names.length; i += 1) {
+            AppPojo pojo = candidates.get(i);
+            // Skip pojos missing some characters of the query, null names are never matched
+            if (pojo.mayMatch(queryNormalized)) {
+                names[i] = pojo.normalizedName.codePoints;
+            }
+        }
+        if (searcher.isCancelled()) {
+            return;
+        }
+        int[] scores = new int[names.length];
+        fuzzyScore.scoreAll(names, scores);
 
-        for (AppPojo pojo : pojos) {
-            if(pojo.isExcluded()) {
+        for (int i = 0; i < names.length; i += 1) {
+            if (i % Searcher.CANCELLATION_CHECK_INTERVAL == 0 && searcher.isCancelled()) {
+                return;
+            }
+            AppPojo pojo = candidates.get(i);
+            if (names[i] == null) {
                 continue;
             }
 
-            matchInfo = fuzzyScore.match(pojo.normalizedName.codePoints);
-            match = matchInfo.match;
-            pojo.relevance = matchInfo.score;
+            int relevance = scores[i];
 
             // check relevance for tags
             if (pojo.getNormalizedTags() != null) {
-                matchInfo = fuzzyScore.match(pojo.getNormalizedTags().codePoints);
-                if (matchInfo.match && (!match || matchInfo.score > pojo.relevance)) {
-                    match = true;
-                    pojo.relevance = matchInfo.score;
+                int tagsScore = fuzzyScore.score(pojo.getNormalizedTags().codePoints);
+                if (tagsScore > relevance) {
+                    relevance = tagsScore;
                 }
             }
 
-            if (match && !searcher.addResult(pojo)) {
-                return;
+            if (relevance == FuzzyScore.NO_MATCH) {
+                continue;
             }
-        }
-    }
+            survivors.add(pojo);
 
-    /**
-     * Return a Pojo
-     *
-     * @param id              we're looking for
-     * @return an AppPojo, or null
-     */
-    @Override
-    public Pojo findById(String id) {
-        for (Pojo pojo : pojos) {
-            if (pojo.id.equals(id)) {
-                return pojo;
+            if (pojo.isExcluded()) {
+                continue;
+            }
+
+            if (!searcher.addResult(pojo, relevance)) {
+                return;
             }
         }
 
-        return null;
+        queryCache.put(pojos, queryNormalized.codePoints, survivors);
     }
 
     public ArrayList<AppPojo> getAllApps() {
         ArrayList<AppPojo> records = new ArrayList<>(pojos.size());
 
-        for (AppPojo pojo : pojos) {
-            pojo.relevance = 0;
-            records.add(pojo);
-        }
+        records.addAll(pojos);
         return records;
     }
 
@@ -207,7 +472,6 @@ public class AppProvider extends Provider<AppPojo> {
         for (AppPojo pojo : pojos) {
             if(pojo.isExcluded()) continue;
 
-            pojo.relevance = 0;
             records.add(pojo);
         }
         return records;
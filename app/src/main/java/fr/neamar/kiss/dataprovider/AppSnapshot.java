@@ -0,0 +1,138 @@
+package fr.neamar.kiss.dataprovider;
+
+import android.content.Context;
+import android.os.Build;
+import android.os.UserManager;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.neamar.kiss.normalizer.StringNormalizer;
+import fr.neamar.kiss.pojo.AppPojo;
+import fr.neamar.kiss.utils.SnapshotFile;
+import fr.neamar.kiss.utils.UserHandle;
+
+import static fr.neamar.kiss.utils.SnapshotFile.readString;
+import static fr.neamar.kiss.utils.SnapshotFile.writeString;
+
+/**
+ * The apps of the last load, stored in a compact binary file.
+ * <p>
+ * Reading it back (memory-mapped) is much faster than asking the system for every app and
+ * normalizing every label again, so the app list can be searched as soon as the launcher starts.
+ * The snapshot may be outdated, it is reconciled with the system once the real load is over.
+ */
+class AppSnapshot {
+    private static final String TAG = "AppSnapshot";
+
+    private static final int MAGIC = 0x4B495353; // "KISS"
+    /**
+     * To be incremented on every change of the format
+     */
+    private static final int VERSION = 1;
+
+    private static final int FLAG_EXCLUDED = 1;
+    private static final int FLAG_EXCLUDED_FROM_HISTORY = 2;
+    private static final int FLAG_HAS_TAGS = 4;
+
+    private AppSnapshot() {
+    }
+
+    /**
+     * @return apps of the snapshot, or null if there is no usable snapshot
+     */
+    static ArrayList<AppPojo> read(Context context, File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        try {
+            ByteBuffer buffer = SnapshotFile.map(file);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+
+            UserManager manager = Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1
+                    ? (UserManager) context.getSystemService(Context.USER_SERVICE) : null;
+
+            int count = buffer.getInt();
+            ArrayList<AppPojo> apps = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                String id = readString(buffer);
+                String packageName = readString(buffer);
+                String activityName = readString(buffer);
+                long serial = buffer.getLong();
+                int flags = buffer.get();
+                String name = readString(buffer);
+                StringNormalizer.Result normalizedName = StringNormalizer.Result.readFrom(buffer);
+                String tags = null;
+                StringNormalizer.Result normalizedTags = null;
+                if ((flags & FLAG_HAS_TAGS) != 0) {
+                    tags = readString(buffer);
+                    normalizedTags = StringNormalizer.Result.readFrom(buffer);
+                }
+
+                UserHandle user = getUser(manager, serial);
+                if (user == null) {
+                    // Profile was removed since
+                    continue;
+                }
+
+                AppPojo app = new AppPojo(id, packageName, activityName, user,
+                        (flags & FLAG_EXCLUDED) != 0, (flags & FLAG_EXCLUDED_FROM_HISTORY) != 0);
+                app.setName(name, normalizedName);
+                app.setTags(tags, normalizedTags);
+                apps.add(app);
+            }
+
+            Log.i(TAG, "Read " + apps.size() + " apps in " + (System.nanoTime() - start) / 1000000 + "ms");
+            return apps;
+        } catch (IOException | RuntimeException e) {
+            // Truncated or corrupted, the real load will replace it
+            Log.w(TAG, "Unable to read apps snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the apps, replacing the previous snapshot only once the new one is complete
+     */
+    static synchronized void write(File file, final List<AppPojo> apps) {
+        SnapshotFile.write(file, output -> {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(apps.size());
+            for (AppPojo app : apps) {
+                String tags = app.getTags();
+                int flags = (app.isExcluded() ? FLAG_EXCLUDED : 0)
+                        | (app.isExcludedFromHistory() ? FLAG_EXCLUDED_FROM_HISTORY : 0)
+                        | (tags != null && app.getNormalizedTags() != null ? FLAG_HAS_TAGS : 0);
+
+                writeString(output, app.id);
+                writeString(output, app.packageName);
+                writeString(output, app.activityName);
+                output.writeLong(app.userHandle.getSerial());
+                output.writeByte(flags);
+                writeString(output, app.getName());
+                app.normalizedName.writeTo(output);
+                if ((flags & FLAG_HAS_TAGS) != 0) {
+                    writeString(output, tags);
+                    app.getNormalizedTags().writeTo(output);
+                }
+            }
+        });
+    }
+
+    private static UserHandle getUser(UserManager manager, long serial) {
+        if (serial == 0 || manager == null) {
+            return new UserHandle();
+        }
+        android.os.UserHandle user = manager.getUserForSerialNumber(serial);
+        return user != null ? new UserHandle(serial, user) : null;
+    }
+}
@@ -1,9 +1,19 @@
 package fr.neamar.kiss.dataprovider;
 
 import android.database.ContentObserver;
+import android.os.AsyncTask;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
 import android.provider.ContactsContract;
 import android.util.Log;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
 import fr.neamar.kiss.forwarder.Permission;
 import fr.neamar.kiss.loader.LoadContactsPojos;
 import fr.neamar.kiss.normalizer.PhoneNormalizer;
@@ -11,25 +21,194 @@ import fr.neamar.kiss.normalizer.StringNormalizer;
 import fr.neamar.kiss.pojo.ContactsPojo;
 import fr.neamar.kiss.searcher.Searcher;
 import fr.neamar.kiss.utils.FuzzyScore;
+import fr.neamar.kiss.utils.SnapshotFile;
 
 public class ContactsProvider extends Provider<ContactsPojo> {
     private final static String TAG = "ContactsProvider";
-    private final ContentObserver cObserver = new ContentObserver(null) {
+
+    /**
+     * Contacts are synced once no change was notified for this delay...
+     */
+    private static final int CONTACTS_SYNC_DELAY_MS = 2000;
+    /**
+     * ...or once the first change waited for this long
+     */
+    private static final int CONTACTS_SYNC_MAX_DELAY_MS = 10000;
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final ContentObserver cObserver = new ContentObserver(handler) {
 
         @Override
         public void onChange(boolean selfChange) {
-            //reload contacts
-            Log.i(TAG, "Contacts changed, reloading provider.");
-            reload();
+            // Sync adapters notify many changes in a row, wait for them to be over
+            long now = System.currentTimeMillis();
+            if (firstPendingChangeTime == 0) {
+                firstPendingChangeTime = now;
+            }
+            handler.removeCallbacks(syncContacts);
+            long delay = Math.min(CONTACTS_SYNC_DELAY_MS, firstPendingChangeTime + CONTACTS_SYNC_MAX_DELAY_MS - now);
+            handler.postDelayed(syncContacts, Math.max(0, delay));
+        }
+    };
+    private long firstPendingChangeTime = 0;
+    private final Runnable syncContacts = new Runnable() {
+        @Override
+        public void run() {
+            firstPendingChangeTime = 0;
+            if (isSyncing) {
+                // Changes are applied in order, sync again once the current one is over
+                isSyncPending = true;
+                return;
+            }
+
+            if (syncTime == 0 || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN_MR2) {
+                Log.i(TAG, "Contacts changed, reloading provider.");
+                reload();
+                return;
+            }
+
+            Log.i(TAG, "Contacts changed, syncing changes.");
+            isSyncing = true;
+            LoadContactsPojos loader = new LoadContactsPojos(ContactsProvider.this, syncTime);
+            loader.setProvider(ContactsProvider.this);
+            loader.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
         }
     };
+    /**
+     * Whether changes are being read, and whether other changes were notified meanwhile
+     */
+    private boolean isSyncing = false;
+    private boolean isSyncPending = false;
+
+    /**
+     * Index of the phone numbers of the current pojos, null until built
+     */
+    private volatile PhoneIndex phoneIndex = null;
+
+    /**
+     * Time the current contacts were read at, 0 if unknown
+     */
+    private long syncTime = 0;
+
+    /**
+     * Incremented on every reload, so that only the snapshot read by the last one is used
+     */
+    private int reloadCount = 0;
 
     @Override
     public void reload() {
         super.reload();
+        reloadCount += 1;
+
+        if (!isLoaded() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2
+                && Permission.checkContactPermission(this)) {
+            // Cold start: search the contacts of the last run, and only read the ones changed since.
+            // The snapshot is read in the background, the load starts once it's applied.
+            final int reload = reloadCount;
+            final File file = getSnapshotFile();
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+                final ContactsSnapshot snapshot = ContactsSnapshot.read(file);
+                handler.post(() -> onSnapshotRead(reload, snapshot));
+            });
+            return;
+        }
+
+        this.initialize(new LoadContactsPojos(this));
+    }
+
+    private void onSnapshotRead(int reload, ContactsSnapshot snapshot) {
+        if (reload != reloadCount) {
+            // Reloaded meanwhile, that reload reads the snapshot again if needed
+            return;
+        }
+
+        // Deleted contacts are forgotten by the system after some time, then everything is read again
+        long age = snapshot != null ? System.currentTimeMillis() - snapshot.syncTime : -1;
+        if (!isLoaded() && age >= 0 && age < ContactsContract.DeletedContacts.DAYS_KEPT_MILLISECONDS) {
+            isSyncing = true;
+            syncTime = snapshot.syncTime;
+            loadOver(snapshot.contacts);
+            this.initialize(new LoadContactsPojos(this, snapshot.syncTime));
+            return;
+        }
+
         this.initialize(new LoadContactsPojos(this));
     }
 
+    /**
+     * Called when every contact was read
+     *
+     * @param syncTime time the contacts were read at, 0 if they can't be read
+     */
+    public void onContactsLoaded(long syncTime, ArrayList<ContactsPojo> contacts) {
+        this.syncTime = syncTime;
+        loadOver(contacts);
+        saveSnapshot();
+    }
+
+    /**
+     * Called when the contacts changed since the previous load were read, to only replace these
+     *
+     * @param syncTime          time the contacts were read at, 0 if they can't be read
+     * @param changedLookupKeys lookup keys of the changed contacts, including the ones without phone
+     * @param deletedContactIds ids of the deleted contacts
+     * @param contacts          changed contacts with a phone
+     */
+    public void onContactsChanged(long syncTime, Set<String> changedLookupKeys, Set<Long> deletedContactIds,
+                                  ArrayList<ContactsPojo> contacts) {
+        isSyncing = false;
+        if (isSyncPending) {
+            // Once these changes are applied
+            isSyncPending = false;
+            handler.post(syncContacts);
+        }
+
+        if (syncTime == 0) {
+            // Permission was revoked
+            onContactsLoaded(0, contacts);
+            return;
+        }
+
+        Set<String> lookupKeys = new HashSet<>(changedLookupKeys);
+        for (ContactsPojo contact : contacts) {
+            lookupKeys.add(contact.lookupKey);
+        }
+        ArrayList<ContactsPojo> removed = new ArrayList<>();
+        for (ContactsPojo pojo : pojos) {
+            if (lookupKeys.contains(pojo.lookupKey) || deletedContactIds.contains(pojo.contactId)) {
+                removed.add(pojo);
+            }
+        }
+
+        if (!removed.isEmpty() || !contacts.isEmpty()) {
+            Log.i(TAG, "Contacts changed: " + removed.size() + " removed, " + contacts.size() + " added");
+            updatePojos(removed, contacts);
+        }
+        this.syncTime = syncTime;
+        saveSnapshot();
+    }
+
+    private File getSnapshotFile() {
+        return new File(getCacheDir(), "contacts.snapshot");
+    }
+
+    /**
+     * Save the current contacts for the next cold start, in the background
+     */
+    private void saveSnapshot() {
+        final List<ContactsPojo> pojos = this.pojos;
+        final long syncTime = this.syncTime;
+        final File file = getSnapshotFile();
+        SnapshotFile.WRITER.execute(() -> {
+            if (syncTime > 0) {
+                ContactsSnapshot.write(file, syncTime, pojos);
+            } else {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        });
+    }
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -42,10 +221,56 @@ public class ContactsProvider extends Provider<ContactsPojo> {
     @Override
     public void onDestroy() {
         super.onDestroy();
+        handler.removeCallbacks(syncContacts);
         //deregister content observer
         getContentResolver().unregisterContentObserver(cObserver);
     }
 
+    @Override
+    public void loadOver(ArrayList<ContactsPojo> results) {
+        super.loadOver(results);
+        buildPhoneIndex();
+    }
+
+    @Override
+    void updatePojos(List<ContactsPojo> removed, List<ContactsPojo> added) {
+        super.updatePojos(removed, added);
+        // Chunks of the first load are scanned, the index is built once they are all there
+        if (isLoaded()) {
+            buildPhoneIndex();
+        }
+    }
+
+    /**
+     * Index the current pojos in the background, the previous index is ignored meanwhile
+     */
+    private void buildPhoneIndex() {
+        final List<ContactsPojo> pojos = this.pojos;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            PhoneIndex phoneIndex = new PhoneIndex(pojos);
+            // Don't replace the index of a newer load
+            if (this.pojos == pojos) {
+                this.phoneIndex = phoneIndex;
+            }
+        });
+    }
+
+    /**
+     * Queries made of digits are looked up in the phone numbers index, when it has fewer candidates
+     */
+    @Override
+    List<ContactsPojo> getCandidates(List<ContactsPojo> pojos, StringNormalizer.Result query) {
+        List<ContactsPojo> candidates = super.getCandidates(pojos, query);
+        PhoneIndex phoneIndex = this.phoneIndex;
+        if (phoneIndex != null && phoneIndex.isFor(pojos)) {
+            List<ContactsPojo> phoneCandidates = phoneIndex.getCandidates(query.codePoints);
+            if (phoneCandidates != null && phoneCandidates.size() < candidates.size()) {
+                return phoneCandidates;
+            }
+        }
+        return candidates;
+    }
+
     @Override
     public void requestResults(String query, Searcher searcher) {
         StringNormalizer.Result queryNormalized = StringNormalizer.normalizeWithResult(query, false);
@@ -55,39 +280,72 @@ public class ContactsProvider extends Provider<ContactsPojo> {
         }
 
         FuzzyScore fuzzyScore = new FuzzyScore(queryNormalized.codePoints);
-        FuzzyScore.MatchInfo matchInfo;
-        boolean match;
+        List<ContactsPojo> pojos = this.pojos;
+        List<ContactsPojo> candidates = getCandidates(pojos, queryNormalized);
+        ArrayList<ContactsPojo> survivors = new ArrayList<>();
 
-        for (ContactsPojo pojo : pojos) {
-            matchInfo = fuzzyScore.match(pojo.normalizedName.codePoints);
-            match = matchInfo.match;
-            pojo.relevance = matchInfo.score;
+        // Score all names in one go, nicknames and phones are only checked afterwards
+        int[][] names = new int[candidates.size()][];
+        for (int i = 0; i < names.length; i += 1) {
+            ContactsPojo pojo = candidates.get(i);
+            // Skip pojos missing some characters of the query, null names are never matched
+            if (pojo.mayMatch(queryNormalized)) {
+                names[i] = pojo.normalizedName.codePoints;
+            }
+        }
+        if (searcher.isCancelled()) {
+            return;
+        }
+        int[] scores = new int[names.length];
+        fuzzyScore.scoreAll(names, scores);
+
+        for (int i = 0; i < names.length; i += 1) {
+            if (i % Searcher.CANCELLATION_CHECK_INTERVAL == 0 && searcher.isCancelled()) {
+                return;
+            }
+            ContactsPojo pojo = candidates.get(i);
+            if (names[i] == null) {
+                continue;
+            }
+
+            int relevance = scores[i];
 
             if (pojo.normalizedNickname != null) {
-                matchInfo = fuzzyScore.match(pojo.normalizedNickname.codePoints);
-                if (matchInfo.match && (!match || matchInfo.score > pojo.relevance)) {
-                    match = true;
-                    pojo.relevance = matchInfo.score;
+                int nicknameScore = fuzzyScore.score(pojo.normalizedNickname.codePoints);
+                if (nicknameScore > relevance) {
+                    relevance = nicknameScore;
                 }
             }
 
-            if (!match && queryNormalized.length() > 2) {
+            int phoneScore = FuzzyScore.NO_MATCH;
+            if (relevance == FuzzyScore.NO_MATCH) {
                 // search for the phone number
-                matchInfo = fuzzyScore.match(pojo.normalizedPhone.codePoints);
-                match = matchInfo.match;
-                pojo.relevance = matchInfo.score;
+                phoneScore = fuzzyScore.score(pojo.normalizedPhone.codePoints);
+                if (phoneScore == FuzzyScore.NO_MATCH) {
+                    continue;
+                }
             }
+            survivors.add(pojo);
 
-            if (match) {
-                pojo.relevance += Math.min(30, pojo.timesContacted);
-                if(pojo.starred) {
-                    pojo.relevance += 40;
+            if (relevance == FuzzyScore.NO_MATCH) {
+                if (queryNormalized.length() <= 2) {
+                    // Phone numbers are only displayed for longer queries,
+                    // but this contact still needs to be a survivor for them
+                    continue;
                 }
+                relevance = phoneScore;
+            }
 
-                if (!searcher.addResult(pojo))
-                    return;
+            relevance += Math.min(30, pojo.timesContacted);
+            if(pojo.starred) {
+                relevance += 40;
             }
+
+            if (!searcher.addResult(pojo, relevance))
+                return;
         }
+
+        queryCache.put(pojos, queryNormalized.codePoints, survivors);
     }
 
     /**
@@ -100,6 +358,13 @@ public class ContactsProvider extends Provider<ContactsPojo> {
     public ContactsPojo findByPhone(String phoneNumber) {
         StringNormalizer.Result simplifiedPhoneNumber = PhoneNormalizer.simplifyPhoneNumber(phoneNumber);
 
+        List<ContactsPojo> pojos = this.pojos;
+        PhoneIndex phoneIndex = this.phoneIndex;
+        if (phoneIndex != null && phoneIndex.isFor(pojos)) {
+            return phoneIndex.findByPhone(simplifiedPhoneNumber);
+        }
+
+        // Index is still being built
         for (ContactsPojo pojo : pojos) {
             if (pojo.normalizedPhone.equals(simplifiedPhoneNumber)) {
                 return pojo;
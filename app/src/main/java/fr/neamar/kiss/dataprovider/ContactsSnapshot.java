@@ -0,0 +1,138 @@
+package fr.neamar.kiss.dataprovider;
+
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.neamar.kiss.normalizer.StringNormalizer;
+import fr.neamar.kiss.pojo.ContactsPojo;
+import fr.neamar.kiss.utils.SnapshotFile;
+
+import static fr.neamar.kiss.utils.SnapshotFile.readString;
+import static fr.neamar.kiss.utils.SnapshotFile.writeString;
+
+/**
+ * The contacts of the last load, stored in a compact binary file with the time they were read at.
+ * <p>
+ * Contacts can be searched from this file right away, then only the contacts changed since
+ * that time need to be read again from the contacts provider.
+ */
+class ContactsSnapshot {
+    private static final String TAG = "ContactsSnapshot";
+
+    private static final int MAGIC = 0x4B495343; // "KISC"
+    /**
+     * To be incremented on every change of the format or of the meaning of a field
+     */
+    private static final int VERSION = 2;
+
+    private static final int FLAG_PRIMARY = 1;
+    private static final int FLAG_STARRED = 2;
+    private static final int FLAG_HOME_NUMBER = 4;
+    private static final int FLAG_HAS_NICKNAME = 8;
+    private static final int FLAG_HAS_ICON = 16;
+
+    /**
+     * Time the contacts were read at
+     */
+    final long syncTime;
+    final ArrayList<ContactsPojo> contacts;
+
+    private ContactsSnapshot(long syncTime, ArrayList<ContactsPojo> contacts) {
+        this.syncTime = syncTime;
+        this.contacts = contacts;
+    }
+
+    /**
+     * @return contacts of the snapshot, or null if there is no usable snapshot
+     */
+    static ContactsSnapshot read(File file) {
+        if (!file.exists()) {
+            return null;
+        }
+
+        long start = System.nanoTime();
+        try {
+            ByteBuffer buffer = SnapshotFile.map(file);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                return null;
+            }
+
+            long syncTime = buffer.getLong();
+            int count = buffer.getInt();
+            ArrayList<ContactsPojo> contacts = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                String id = readString(buffer);
+                long contactId = buffer.getLong();
+                String lookupKey = readString(buffer);
+                String phone = readString(buffer);
+                StringNormalizer.Result normalizedPhone = StringNormalizer.Result.readFrom(buffer);
+                int flags = buffer.get();
+                int timesContacted = buffer.getInt();
+                Uri icon = (flags & FLAG_HAS_ICON) != 0 ? Uri.parse(readString(buffer)) : null;
+                String name = readString(buffer);
+                StringNormalizer.Result normalizedName = StringNormalizer.Result.readFrom(buffer);
+
+                ContactsPojo contact = new ContactsPojo(id, contactId, lookupKey, phone, normalizedPhone, icon,
+                        (flags & FLAG_PRIMARY) != 0, timesContacted, (flags & FLAG_STARRED) != 0,
+                        (flags & FLAG_HOME_NUMBER) != 0);
+                contact.setName(name, normalizedName);
+                if ((flags & FLAG_HAS_NICKNAME) != 0) {
+                    String nickname = readString(buffer);
+                    contact.setNickname(nickname, StringNormalizer.Result.readFrom(buffer));
+                }
+                contacts.add(contact);
+            }
+
+            Log.i(TAG, "Read " + contacts.size() + " contacts in " + (System.nanoTime() - start) / 1000000 + "ms");
+            return new ContactsSnapshot(syncTime, contacts);
+        } catch (IOException | RuntimeException e) {
+            // Truncated or corrupted, a full load will replace it
+            Log.w(TAG, "Unable to read contacts snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Write the contacts, replacing the previous snapshot only once the new one is complete
+     *
+     * @param syncTime time the contacts were read at
+     */
+    static synchronized void write(File file, final long syncTime, final List<ContactsPojo> contacts) {
+        SnapshotFile.write(file, output -> {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(syncTime);
+            output.writeInt(contacts.size());
+            for (ContactsPojo contact : contacts) {
+                int flags = (contact.primary ? FLAG_PRIMARY : 0)
+                        | (contact.starred ? FLAG_STARRED : 0)
+                        | (contact.homeNumber ? FLAG_HOME_NUMBER : 0)
+                        | (contact.normalizedNickname != null ? FLAG_HAS_NICKNAME : 0)
+                        | (contact.icon != null ? FLAG_HAS_ICON : 0);
+
+                writeString(output, contact.id);
+                output.writeLong(contact.contactId);
+                writeString(output, contact.lookupKey);
+                writeString(output, contact.phone);
+                contact.normalizedPhone.writeTo(output);
+                output.writeByte(flags);
+                output.writeInt(contact.timesContacted);
+                if (contact.icon != null) {
+                    writeString(output, contact.icon.toString());
+                }
+                writeString(output, contact.getName());
+                contact.normalizedName.writeTo(output);
+                if ((flags & FLAG_HAS_NICKNAME) != 0) {
+                    writeString(output, contact.getNickname());
+                    contact.normalizedNickname.writeTo(output);
+                }
+            }
+        });
+    }
+}
@@ -31,6 +31,7 @@ public interface IProvider {
      * <p>
      * If this method returns `false` then the client may listen for the
      * `"fr.neamar.summon.LOAD_OVER"` intent for notification of when the provider is ready.
+     * The intent is also emitted for each chunk of pojos the first load makes searchable.
      *
      * @return Is the provider ready to process search results?
      */
@@ -0,0 +1,330 @@
+package fr.neamar.kiss.dataprovider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import fr.neamar.kiss.normalizer.StringNormalizer;
+import fr.neamar.kiss.pojo.ContactsPojo;
+
+/**
+ * Phone numbers of the contacts, indexed by their digits.
+ * <p>
+ * To find the contact calling, numbers are sorted on their reversed digits: numbers ending the
+ * same way are next to each other, and a binary search finds them whatever the prefix
+ * they were written with ("+33 6 12 ..." and "06 12 ..." share the same last digits).
+ * <p>
+ * To search a number being typed, each contact is listed under every 3 consecutive digits of its
+ * number, and the contacts having all the digit triplets of the query are intersected.
+ */
+class PhoneIndex {
+    /**
+     * Numbers match when their last MIN_MATCH digits at least are the same, and the digits in front
+     * of them are only a trunk prefix or a country code. Shorter numbers must be equal.
+     */
+    private static final int MIN_MATCH = 7;
+    private static final int TRIGRAMS = 1000;
+    private static final int[] EMPTY = new int[0];
+
+    private final List<ContactsPojo> pojos;
+
+    /**
+     * Reversed digits of each phone number, sorted, and the contact owning the number
+     */
+    private final String[] reversedPhones;
+    private final ContactsPojo[] reversedPhoneOwners;
+
+    /**
+     * Indices of the contacts whose number contains each 3 digits
+     */
+    private final int[][] trigrams = new int[TRIGRAMS][];
+    /**
+     * Indices of the contacts with digits in their name or nickname, which the trigrams don't cover
+     */
+    private final int[] digitNames;
+
+    PhoneIndex(List<ContactsPojo> pojos) {
+        this.pojos = pojos;
+
+        final String[] digits = new String[pojos.size()];
+        ArrayList<Integer> withPhone = new ArrayList<>(pojos.size());
+        ArrayList<Integer> names = new ArrayList<>();
+        for (int i = 0; i < digits.length; i += 1) {
+            ContactsPojo pojo = pojos.get(i);
+            digits[i] = pojo.normalizedPhone != null ? getDigits(pojo.normalizedPhone.codePoints) : "";
+            if (!digits[i].isEmpty()) {
+                withPhone.add(i);
+            }
+            if (hasDigit(pojo.normalizedName) || hasDigit(pojo.normalizedNickname)) {
+                names.add(i);
+            }
+        }
+        digitNames = new int[names.size()];
+        for (int i = 0; i < digitNames.length; i += 1) {
+            digitNames[i] = names.get(i);
+        }
+
+        Integer[] sorted = withPhone.toArray(new Integer[0]);
+        final String[] reversed = new String[digits.length];
+        for (int i : sorted) {
+            reversed[i] = new StringBuilder(digits[i]).reverse().toString();
+        }
+        Arrays.sort(sorted, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return reversed[a].compareTo(reversed[b]);
+            }
+        });
+        reversedPhones = new String[sorted.length];
+        reversedPhoneOwners = new ContactsPojo[sorted.length];
+        for (int i = 0; i < sorted.length; i += 1) {
+            reversedPhones[i] = reversed[sorted[i]];
+            reversedPhoneOwners[i] = pojos.get(sorted[i]);
+        }
+
+        buildTrigrams(digits);
+    }
+
+    /**
+     * Two passes over the numbers: count the contacts of each trigram, then fill the lists
+     */
+    private void buildTrigrams(String[] digits) {
+        int[] counts = new int[TRIGRAMS];
+        int[] last = new int[TRIGRAMS];
+        Arrays.fill(last, -1);
+        for (int i = 0; i < digits.length; i += 1) {
+            for (int j = 0; j + 3 <= digits[i].length(); j += 1) {
+                int trigram = getTrigram(digits[i], j);
+                if (last[trigram] != i) {
+                    last[trigram] = i;
+                    counts[trigram] += 1;
+                }
+            }
+        }
+
+        for (int trigram = 0; trigram < TRIGRAMS; trigram += 1) {
+            trigrams[trigram] = counts[trigram] == 0 ? EMPTY : new int[counts[trigram]];
+        }
+        Arrays.fill(counts, 0);
+        Arrays.fill(last, -1);
+        for (int i = 0; i < digits.length; i += 1) {
+            for (int j = 0; j + 3 <= digits[i].length(); j += 1) {
+                int trigram = getTrigram(digits[i], j);
+                if (last[trigram] != i) {
+                    last[trigram] = i;
+                    trigrams[trigram][counts[trigram]] = i;
+                    counts[trigram] += 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if this index was built from these pojos
+     */
+    boolean isFor(List<ContactsPojo> pojos) {
+        return this.pojos == pojos;
+    }
+
+    /**
+     * Find the contact with this phone number, written with or without its country code or trunk prefix.
+     * If many contacts match, the one matching the most digits then the most often contacted is returned.
+     *
+     * @param phoneNumber simplified phone number
+     * @return a contact, or null
+     */
+    ContactsPojo findByPhone(StringNormalizer.Result phoneNumber) {
+        String reversed = new StringBuilder(getDigits(phoneNumber.codePoints)).reverse().toString();
+        if (reversed.isEmpty()) {
+            return null;
+        }
+
+        String prefix = reversed.substring(0, Math.min(MIN_MATCH, reversed.length()));
+        ContactsPojo best = null;
+        int bestLength = 0;
+        for (int i = lowerBound(prefix); i < reversedPhones.length && reversedPhones[i].startsWith(prefix); i += 1) {
+            String phone = reversedPhones[i];
+            int length = getCommonPrefixLength(phone, reversed);
+            if (length < MIN_MATCH && (length != phone.length() || length != reversed.length())) {
+                // Short numbers (e.g. emergency numbers) must be the same
+                continue;
+            }
+            if (!isSameNumber(phone, reversed, length) && !(length > MIN_MATCH && isSameNumber(phone, reversed, length - 1))) {
+                // Same subscriber number, in another area.
+                // The last shared digit may be the trunk prefix, matched by the end of a country code: "+90 532" and "0532"
+                continue;
+            }
+
+            ContactsPojo pojo = reversedPhoneOwners[i];
+            if (best == null || length > bestLength || (length == bestLength && pojo.timesContacted > best.timesContacted)) {
+                best = pojo;
+                bestLength = length;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Get the contacts that may match a query made of digits: the ones with all the digit triplets
+     * of the query in their number, and the ones with digits in their name.
+     *
+     * @param query normalized query
+     * @return candidates in the order of the pojos, or null if the query is not made of at least 3 digits
+     */
+    List<ContactsPojo> getCandidates(int[] query) {
+        if (query.length < 3) {
+            return null;
+        }
+        for (int codePoint : query) {
+            if (codePoint < '0' || codePoint > '9') {
+                return null;
+            }
+        }
+
+        // Start from the rarest triplet, the intersection can only get smaller
+        int[] rarest = null;
+        for (int i = 0; i + 3 <= query.length; i += 1) {
+            int[] contacts = trigrams[getTrigram(query, i)];
+            if (rarest == null || contacts.length < rarest.length) {
+                rarest = contacts;
+            }
+        }
+        int[] matching = rarest;
+        for (int i = 0; i + 3 <= query.length && matching.length > 0; i += 1) {
+            int[] contacts = trigrams[getTrigram(query, i)];
+            if (contacts != rarest) {
+                matching = intersect(matching, contacts);
+            }
+        }
+
+        // Merge with the contacts having digits in their name, keeping the order of pojos
+        ArrayList<ContactsPojo> candidates = new ArrayList<>(matching.length + digitNames.length);
+        int i = 0;
+        int j = 0;
+        while (i < matching.length || j < digitNames.length) {
+            int next;
+            if (j == digitNames.length || (i < matching.length && matching[i] < digitNames[j])) {
+                next = matching[i++];
+            } else if (i == matching.length || digitNames[j] < matching[i]) {
+                next = digitNames[j++];
+            } else {
+                next = matching[i++];
+                j += 1;
+            }
+            candidates.add(pojos.get(next));
+        }
+        return candidates;
+    }
+
+    /**
+     * Compare the digits written in front of the shared end of two numbers: one number must be
+     * the other one with a country code, e.g. "+33 6 12 34 56 78" and "06 12 34 56 78".
+     *
+     * @param reversedA    digits of a number, reversed
+     * @param reversedB    digits of the other number, reversed
+     * @param sharedLength number of digits at the end of both numbers considered as shared
+     */
+    private static boolean isSameNumber(String reversedA, String reversedB, int sharedLength) {
+        String a = new StringBuilder(reversedA.substring(sharedLength)).reverse().toString();
+        String b = new StringBuilder(reversedB.substring(sharedLength)).reverse().toString();
+        return (isTrunkPrefix(a) && isCountryPrefix(b)) || (isTrunkPrefix(b) && isCountryPrefix(a));
+    }
+
+    /**
+     * @return true for nothing, or the digit dialed before national numbers (0 in most countries, 1 in North America, 8 in Russia)
+     */
+    private static boolean isTrunkPrefix(String digits) {
+        return digits.isEmpty() || digits.equals("0") || digits.equals("1") || digits.equals("8");
+    }
+
+    /**
+     * @return true for nothing, or a country code optionally preceded by an international call prefix (00 or 011)
+     */
+    private static boolean isCountryPrefix(String digits) {
+        if (digits.startsWith("00")) {
+            digits = digits.substring(2);
+        } else if (digits.startsWith("011")) {
+            digits = digits.substring(3);
+        }
+        if (digits.isEmpty()) {
+            return true;
+        }
+        // Country codes have 1 to 3 digits, and only 1 and 7 have a single digit
+        return digits.length() <= 3 && digits.charAt(0) != '0'
+                && (digits.length() > 1 || digits.equals("1") || digits.equals("7"));
+    }
+
+    private int lowerBound(String prefix) {
+        int low = 0;
+        int high = reversedPhones.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (reversedPhones[middle].compareTo(prefix) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static int[] intersect(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int count = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.length && j < b.length) {
+            if (a[i] < b[j]) {
+                i += 1;
+            } else if (a[i] > b[j]) {
+                j += 1;
+            } else {
+                result[count++] = a[i];
+                i += 1;
+                j += 1;
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    private static int getCommonPrefixLength(String a, String b) {
+        int length = Math.min(a.length(), b.length());
+        for (int i = 0; i < length; i += 1) {
+            if (a.charAt(i) != b.charAt(i)) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    private static int getTrigram(String digits, int start) {
+        return (digits.charAt(start) - '0') * 100 + (digits.charAt(start + 1) - '0') * 10 + (digits.charAt(start + 2) - '0');
+    }
+
+    private static int getTrigram(int[] digits, int start) {
+        return (digits[start] - '0') * 100 + (digits[start + 1] - '0') * 10 + (digits[start + 2] - '0');
+    }
+
+    private static String getDigits(int[] codePoints) {
+        StringBuilder digits = new StringBuilder(codePoints.length);
+        for (int codePoint : codePoints) {
+            if (codePoint >= '0' && codePoint <= '9') {
+                digits.append((char) codePoint);
+            }
+        }
+        return digits.toString();
+    }
+
+    private static boolean hasDigit(StringNormalizer.Result field) {
+        if (field == null) {
+            return false;
+        }
+        for (int codePoint : field.codePoints) {
+            if (codePoint >= '0' && codePoint <= '9') {
+                return true;
+            }
+        }
+        return false;
+    }
+}
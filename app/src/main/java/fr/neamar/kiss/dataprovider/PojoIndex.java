@@ -0,0 +1,327 @@
+package fr.neamar.kiss.dataprovider;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+
+import fr.neamar.kiss.normalizer.StringNormalizer;
+import fr.neamar.kiss.pojo.Pojo;
+
+/**
+ * Inverted index over the searchable fields of the pojos of a provider.
+ * <p>
+ * Queries are fuzzy matched (each character must be found, in order, but not necessarily
+ * next to each other), so instead of indexing substrings every ordered pair of characters
+ * is indexed: "kiss" registers (k, i), (k, s), (i, s) and (s, s).
+ * A pojo can only match "abc" if one of its fields contains both the (a, b) and the (b, c) pairs,
+ * so intersecting the posting lists of these pairs gives a small superset of the matches
+ * without looking at the other pojos.
+ * <p>
+ * Characters are folded to {@link StringNormalizer.Result#getCharacterClass(int)},
+ * so that the whole index fits in a fixed array of posting lists.
+ * Posting lists are sorted ordinals, stored as variable-length deltas.
+ */
+class PojoIndex<T extends Pojo> {
+    /**
+     * Shorter queries are better served by scanning everything: their pairs are too common
+     */
+    static final int MIN_QUERY_LENGTH = 3;
+
+    /**
+     * When more than this ratio of the ordinals are removed, posting lists are rebuilt
+     */
+    private static final int MAX_REMOVED_RATIO = 2;
+
+    private static final int CLASSES = StringNormalizer.Result.CHARACTER_CLASSES;
+
+    private final PostingList[] postings = new PostingList[CLASSES * CLASSES];
+    /**
+     * Indexed pojos, by ordinal. Removed pojos leave a hole (null) until the next compaction.
+     */
+    private final ArrayList<T> items;
+    private final IdentityHashMap<Pojo, Integer> ordinals;
+    private int removedCount = 0;
+    /**
+     * Number of items already added to the posting lists
+     */
+    private int indexedCount = 0;
+    /**
+     * False until {@link #build()} is over, the index can't answer queries before that
+     */
+    private volatile boolean ready = false;
+
+    /**
+     * Scratch space for {@link #addToPostings(Pojo, int)}: bit a of before[b] is set when the pair (a, b) exists
+     */
+    private final long[] before = new long[CLASSES];
+
+    /**
+     * Cheap, the actual work is done by {@link #build()}
+     *
+     * @param pojos pojos to index, the list is not kept
+     */
+    PojoIndex(List<T> pojos) {
+        items = new ArrayList<>(pojos);
+        ordinals = new IdentityHashMap<>(items.size());
+        for (int i = 0; i < items.size(); i += 1) {
+            ordinals.put(items.get(i), i);
+        }
+    }
+
+    /**
+     * Index all the pojos, should be called on a background thread
+     */
+    synchronized void build() {
+        while (indexedCount < items.size()) {
+            T pojo = items.get(indexedCount);
+            if (pojo != null) {
+                addToPostings(pojo, indexedCount);
+            }
+            indexedCount += 1;
+        }
+        ready = true;
+    }
+
+    /**
+     * Add a new pojo to the index
+     */
+    synchronized void add(T pojo) {
+        if (ordinals.containsKey(pojo)) {
+            return;
+        }
+        ordinals.put(pojo, items.size());
+        items.add(pojo);
+        if (ready) {
+            addToPostings(pojo, indexedCount);
+            indexedCount += 1;
+        }
+    }
+
+    /**
+     * Remove a pojo from the index, it will never be returned as a candidate again
+     */
+    synchronized void remove(Pojo pojo) {
+        Integer ordinal = ordinals.remove(pojo);
+        if (ordinal == null) {
+            return;
+        }
+        items.set(ordinal, null);
+        removedCount += 1;
+
+        if (ready && removedCount * MAX_REMOVED_RATIO > items.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * A searchable field of the pojo changed in place, index its new values
+     */
+    synchronized void update(Pojo pojo) {
+        Integer ordinal = ordinals.get(pojo);
+        if (ordinal == null) {
+            return;
+        }
+        T item = items.get(ordinal);
+        remove(item);
+        add(item);
+    }
+
+    /**
+     * Get the pojos that may match the query
+     *
+     * @param query normalized query
+     * @return candidates in index order, or null when the index can't help (not built yet, query too short)
+     */
+    List<T> getCandidates(int[] query) {
+        if (!ready || query.length < MIN_QUERY_LENGTH) {
+            return null;
+        }
+
+        synchronized (this) {
+            // Distinct posting lists of the consecutive pairs of the query
+            PostingList[] lists = new PostingList[query.length - 1];
+            int listCount = 0;
+            for (int i = 0; i < query.length - 1; i += 1) {
+                PostingList list = postings[getPairKey(query[i], query[i + 1])];
+                if (list == null) {
+                    // No pojo has this pair, nothing can match
+                    return new ArrayList<>(0);
+                }
+                boolean known = false;
+                for (int j = 0; j < listCount; j += 1) {
+                    known |= lists[j] == list;
+                }
+                if (!known) {
+                    lists[listCount] = list;
+                    listCount += 1;
+                }
+            }
+
+            // Start from the rarest pair, so that other lists are only walked to filter it
+            Arrays.sort(lists, 0, listCount, (a, b) -> Integer.compare(a.count, b.count));
+            int[] matches = lists[0].decode();
+            int matchCount = matches.length;
+            for (int i = 1; i < listCount && matchCount > 0; i += 1) {
+                matchCount = lists[i].retainAll(matches, matchCount);
+            }
+
+            ArrayList<T> candidates = new ArrayList<>(matchCount);
+            for (int i = 0; i < matchCount; i += 1) {
+                T pojo = items.get(matches[i]);
+                if (pojo != null) {
+                    candidates.add(pojo);
+                }
+            }
+            return candidates;
+        }
+    }
+
+    /**
+     * Register every ordered pair of characters found in any searchable field of the pojo
+     */
+    private void addToPostings(Pojo pojo, int ordinal) {
+        Arrays.fill(before, 0);
+        for (StringNormalizer.Result field : pojo.getSearchableFields()) {
+            if (field == null) {
+                continue;
+            }
+            long seen = 0;
+            for (int codePoint : field.codePoints) {
+                int characterClass = StringNormalizer.Result.getCharacterClass(codePoint);
+                before[characterClass] |= seen;
+                seen |= 1L << characterClass;
+            }
+        }
+
+        for (int second = 0; second < CLASSES; second += 1) {
+            long firsts = before[second];
+            while (firsts != 0) {
+                int first = Long.numberOfTrailingZeros(firsts);
+                firsts &= firsts - 1;
+
+                int key = first * CLASSES + second;
+                if (postings[key] == null) {
+                    postings[key] = new PostingList();
+                }
+                postings[key].add(ordinal);
+            }
+        }
+    }
+
+    /**
+     * Drop the holes left by removed pojos, renumbering the remaining ones
+     */
+    private void compact() {
+        ArrayList<T> remaining = new ArrayList<>(items.size() - removedCount);
+        for (T pojo : items) {
+            if (pojo != null) {
+                remaining.add(pojo);
+            }
+        }
+
+        Arrays.fill(postings, null);
+        items.clear();
+        ordinals.clear();
+        removedCount = 0;
+        indexedCount = 0;
+        for (T pojo : remaining) {
+            ordinals.put(pojo, items.size());
+            items.add(pojo);
+            addToPostings(pojo, indexedCount);
+            indexedCount += 1;
+        }
+    }
+
+    private static int getPairKey(int first, int second) {
+        return StringNormalizer.Result.getCharacterClass(first) * CLASSES
+                + StringNormalizer.Result.getCharacterClass(second);
+    }
+
+    /**
+     * Sorted list of ordinals, each one stored as its difference with the previous one,
+     * seven bits per byte (high bit set when more bytes follow)
+     */
+    private static final class PostingList {
+        private byte[] data = new byte[8];
+        private int size = 0;
+        private int count = 0;
+        private int last = 0;
+
+        /**
+         * @param ordinal must be greater than every ordinal already in the list
+         */
+        void add(int ordinal) {
+            int delta = ordinal - last;
+            last = ordinal;
+            count += 1;
+
+            if (size + 5 > data.length) {
+                data = Arrays.copyOf(data, data.length * 2);
+            }
+            while ((delta & ~0x7F) != 0) {
+                data[size++] = (byte) ((delta & 0x7F) | 0x80);
+                delta >>>= 7;
+            }
+            data[size++] = (byte) delta;
+        }
+
+        int[] decode() {
+            int[] ordinals = new int[count];
+            int position = 0;
+            int ordinal = 0;
+            for (int i = 0; i < count; i += 1) {
+                int delta = 0;
+                int shift = 0;
+                byte b;
+                do {
+                    b = data[position++];
+                    delta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                ordinal += delta;
+                ordinals[i] = ordinal;
+            }
+            return ordinals;
+        }
+
+        /**
+         * Only keep the ordinals that are also in this list
+         *
+         * @param ordinals sorted ordinals, filtered in place
+         * @param length   number of valid entries in ordinals
+         * @return number of entries kept
+         */
+        int retainAll(int[] ordinals, int length) {
+            int kept = 0;
+            int position = 0;
+            int remaining = count;
+            int ordinal = 0;
+            boolean started = false;
+            for (int i = 0; i < length; i += 1) {
+                int target = ordinals[i];
+                while ((!started || ordinal < target) && remaining > 0) {
+                    int delta = 0;
+                    int shift = 0;
+                    byte b;
+                    do {
+                        b = data[position++];
+                        delta |= (b & 0x7F) << shift;
+                        shift += 7;
+                    } while (b < 0);
+                    ordinal += delta;
+                    started = true;
+                    remaining -= 1;
+                }
+                if (started && ordinal == target) {
+                    ordinals[kept] = target;
+                    kept += 1;
+                } else if (!started || ordinal < target) {
+                    // List exhausted
+                    break;
+                }
+            }
+            return kept;
+        }
+    }
+}
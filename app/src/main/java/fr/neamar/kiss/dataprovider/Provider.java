@@ -4,28 +4,69 @@ import android.app.Service;
 import android.content.Intent;
 import android.os.AsyncTask;
 import android.os.Binder;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.util.Log;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+import java.util.Set;
 
 import fr.neamar.kiss.MainActivity;
 import fr.neamar.kiss.loader.LoadPojos;
+import fr.neamar.kiss.normalizer.StringNormalizer;
 import fr.neamar.kiss.pojo.Pojo;
 
 public abstract class Provider<T extends Pojo> extends Service implements IProvider {
     private final static String TAG = "Provider";
 
+    /**
+     * While loading, LOAD_OVER is broadcast at most once per interval
+     */
+    private final static long LOAD_OVER_INTERVAL_MS = 100;
+
     /**
      * Binder given to clients
      */
     private final IBinder binder = new LocalBinder();
     /**
-     * Storage for search items used by this provider
+     * Storage for search items used by this provider, never modified once published
+     */
+    volatile List<T> pojos = new ArrayList<>();
+    /**
+     * Same pojos, by id. Empty until the first load is over.
+     */
+    Map<String, T> pojosById = new HashMap<>();
+    /**
+     * Pojos received so far during the first load. Chunks are appended after the end of the
+     * last published prefix, which never changes, so publishing a chunk doesn't copy anything.
+     */
+    private Object[] loadingPojos = null;
+    private int loadingCount = 0;
+    private List<T> loadingList = null;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private long lastLoadOverBroadcast = 0;
+    private boolean isLoadOverPending = false;
+    private final Runnable loadOverBroadcast = () -> {
+        isLoadOverPending = false;
+        broadcastLoadOver();
+    };
+    /**
+     * Pojos matching the last queries, to only score previous survivors when the query grows
      */
-    List<T> pojos = new ArrayList<>();
+    final QueryCache<T> queryCache = new QueryCache<>();
+    /**
+     * Inverted index over pojos, to only score the ones that may match a long query
+     */
+    private PojoIndex<T> index = new PojoIndex<>(new ArrayList<T>());
     private boolean loaded = false;
     /**
      * Scheme used to build ids for the pojos created by this provider
@@ -57,6 +98,7 @@ public abstract class Provider<T extends Pojo> extends Service implements IProvi
     }
 
     public void reload() {
+        start = System.currentTimeMillis();
         // Handled at subclass level
         if(pojos.size() > 0) {
             Log.v(TAG, "Reloading provider: " + this.getClass().getSimpleName());
@@ -72,15 +114,117 @@ public abstract class Provider<T extends Pojo> extends Service implements IProvi
 
         Log.i(TAG, "Time to load " + this.getClass().getSimpleName() + ": " + time + "ms");
 
+        Map<String, T> pojosById = new HashMap<>(results.size() * 2);
+        for (T pojo : results) {
+            pojosById.put(pojo.id, pojo);
+        }
+
         // Store results
+        this.pojosById = pojosById;
         this.pojos = results;
         this.loaded = true;
+        this.queryCache.clear();
+        this.loadingPojos = null;
+        this.loadingCount = 0;
+        this.loadingList = null;
+
+        // Searches scan everything until the index is ready
+        final PojoIndex<T> index = new PojoIndex<>(results);
+        this.index = index;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(index::build);
 
         // Broadcast this event
+        handler.removeCallbacks(loadOverBroadcast);
+        isLoadOverPending = false;
+        broadcastLoadOver();
+    }
+
+    /**
+     * Called during the first load with the pojos loaded so far,
+     * so that they can be searched before the load is over.
+     * Later loads keep the previous pojos until the new ones are complete.
+     * <p>
+     * Pojos are not indexed (by id or for search) until the load is over.
+     *
+     * @param chunk pojos loaded since the previous chunk
+     */
+    public void loadChunk(List<T> chunk) {
+        if (isLoaded() || chunk.isEmpty()) {
+            return;
+        }
+        if (loadingList != null && pojos != loadingList) {
+            // Pojos were updated since the previous chunk, don't undo it: the remaining ones come with loadOver
+            return;
+        }
+
+        int count = loadingCount + chunk.size();
+        if (loadingPojos == null) {
+            loadingPojos = new Object[Math.max(count, 256)];
+        } else if (count > loadingPojos.length) {
+            // Lists already published keep the previous array
+            loadingPojos = Arrays.copyOf(loadingPojos, Math.max(count, loadingPojos.length * 2));
+        }
+        for (T pojo : chunk) {
+            loadingPojos[loadingCount] = pojo;
+            loadingCount += 1;
+        }
+        loadingList = new LoadingList<>(loadingPojos, loadingCount);
+        this.pojos = loadingList;
+
+        // Searches get the new pojos once the UI refreshes, no need to refresh it for every chunk
+        if (isLoadOverPending) {
+            return;
+        }
+        long wait = lastLoadOverBroadcast + LOAD_OVER_INTERVAL_MS - System.currentTimeMillis();
+        if (wait > 0) {
+            isLoadOverPending = true;
+            handler.postDelayed(loadOverBroadcast, wait);
+        } else {
+            broadcastLoadOver();
+        }
+    }
+
+    private void broadcastLoadOver() {
+        lastLoadOverBroadcast = System.currentTimeMillis();
         Intent i = new Intent(MainActivity.LOAD_OVER);
         this.sendBroadcast(i);
     }
 
+    /**
+     * Replace some of the pojos, without loading everything again
+     *
+     * @param removed pojos to remove
+     * @param added   new pojos
+     */
+    void updatePojos(List<T> removed, List<T> added) {
+        Set<T> removedSet = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+        removedSet.addAll(removed);
+
+        ArrayList<T> pojos = new ArrayList<>(this.pojos.size() + added.size());
+        for (T pojo : this.pojos) {
+            if (!removedSet.contains(pojo)) {
+                pojos.add(pojo);
+            }
+        }
+        pojos.addAll(added);
+
+        Map<String, T> pojosById = new HashMap<>(this.pojosById);
+        for (T pojo : removed) {
+            pojosById.remove(pojo.id);
+            index.remove(pojo);
+        }
+        for (T pojo : added) {
+            pojosById.put(pojo.id, pojo);
+            index.add(pojo);
+        }
+
+        // The query cache is cleared on its own, the pojos list being a new one
+        this.pojosById = pojosById;
+        this.pojos = pojos;
+
+        broadcastLoadOver();
+    }
+
     /**
      * Tells whether or not this provider may be able to find the pojo with
      * specified id
@@ -100,13 +244,50 @@ public abstract class Provider<T extends Pojo> extends Service implements IProvi
      * @return null if not found
      */
     public Pojo findById(String id) {
-        for (Pojo pojo : pojos) {
-            if (pojo.id.equals(id)) {
-                return pojo;
+        Pojo pojo = pojosById.get(id);
+        if (pojo == null && !isLoaded()) {
+            // Pojos of the first load are only mapped once it's over
+            for (T loading : pojos) {
+                if (loading.id.equals(id)) {
+                    return loading;
+                }
             }
         }
+        return pojo;
+    }
+
+    /**
+     * Called when a pojo handled by this provider was modified in place (e.g. new tags),
+     * so that search structures built from previous values can be refreshed
+     *
+     * @param id id of the pojo that changed
+     */
+    public void onPojoChanged(String id) {
+        queryCache.clear();
 
-        return null;
+        Pojo pojo = findById(id);
+        if (pojo != null) {
+            index.update(pojo);
+        }
+    }
+
+    /**
+     * Get the pojos that may match the query: survivors of a previous query when the user
+     * keeps typing, else the pojos from the index, else everything
+     *
+     * @param pojos all the pojos of the provider, as read at the start of the search
+     * @param query normalized query
+     * @return pojos to score
+     */
+    List<T> getCandidates(List<T> pojos, StringNormalizer.Result query) {
+        List<T> candidates = queryCache.getCandidates(pojos, query.codePoints);
+        if (candidates == pojos) {
+            List<T> indexed = index.getCandidates(query.codePoints);
+            if (indexed != null) {
+                return indexed;
+            }
+        }
+        return candidates;
     }
 
     @Override
@@ -126,6 +307,34 @@ public abstract class Provider<T extends Pojo> extends Service implements IProvi
         return this.binder;
     }
 
+    /**
+     * Read-only prefix of the pojos loaded so far.
+     * Entries of the array below size are never written again.
+     */
+    private static final class LoadingList<T> extends AbstractList<T> implements RandomAccess {
+        private final Object[] items;
+        private final int size;
+
+        LoadingList(Object[] items, int size) {
+            this.items = items;
+            this.size = size;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public T get(int index) {
+            if (index >= size) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+            }
+            return (T) items[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+
     /**
      * Class used for the client Binder.  Because we know this service always
      * runs in the same process as its clients, we don't need to deal with IPC.
@@ -0,0 +1,111 @@
+package fr.neamar.kiss.dataprovider;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import fr.neamar.kiss.pojo.Pojo;
+
+/**
+ * Remember which pojos matched the last queries of a provider.
+ * <p>
+ * A pojo can only match a query if it also matches every prefix of this query,
+ * so when the user keeps typing only the survivors of the previous query need to be scored again.
+ * Entries are kept as a stack of growing prefixes, so that a backspace falls back to the
+ * survivors of the parent query instead of scanning everything again.
+ */
+class QueryCache<T extends Pojo> {
+    /**
+     * Maximum number of prefixes remembered
+     */
+    private static final int MAX_DEPTH = 32;
+
+    private final ArrayList<Entry<T>> entries = new ArrayList<>(MAX_DEPTH);
+    /**
+     * Pojos list the entries were computed from
+     */
+    private List<T> source = null;
+
+    /**
+     * Get the pojos that may match the query
+     *
+     * @param source all the pojos of the provider
+     * @param query  normalized query
+     * @return survivors of the longest cached prefix of query, or source itself
+     */
+    synchronized List<T> getCandidates(List<T> source, int[] query) {
+        if (this.source != source) {
+            // Provider was reloaded since
+            entries.clear();
+            this.source = source;
+        }
+
+        popNonPrefixes(query);
+
+        return entries.isEmpty() ? source : entries.get(entries.size() - 1).survivors;
+    }
+
+    /**
+     * Store the pojos matching the query, should only be called once the whole scan is over
+     *
+     * @param source    all the pojos of the provider, as given to getCandidates()
+     * @param query     normalized query
+     * @param survivors pojos matching the query on any field
+     */
+    synchronized void put(List<T> source, int[] query, List<T> survivors) {
+        if (this.source != source) {
+            // Provider was reloaded while we were searching
+            return;
+        }
+
+        popNonPrefixes(query);
+
+        if (!entries.isEmpty() && entries.get(entries.size() - 1).query.length == query.length) {
+            // Same query, already known
+            return;
+        }
+
+        if (entries.size() == MAX_DEPTH) {
+            entries.remove(0);
+        }
+        entries.add(new Entry<>(query, survivors));
+    }
+
+    /**
+     * Forget everything, for instance when a pojo changed in place
+     */
+    synchronized void clear() {
+        entries.clear();
+        source = null;
+    }
+
+    private void popNonPrefixes(int[] query) {
+        while (!entries.isEmpty() && !isPrefix(entries.get(entries.size() - 1).query, query)) {
+            entries.remove(entries.size() - 1);
+        }
+    }
+
+    /**
+     * Matching is case insensitive, so is the prefix check
+     */
+    private static boolean isPrefix(int[] prefix, int[] query) {
+        if (prefix.length > query.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i += 1) {
+            if (prefix[i] != query[i] && Character.toLowerCase(prefix[i]) != Character.toLowerCase(query[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static final class Entry<T> {
+        final int[] query;
+        final List<T> survivors;
+
+        Entry(int[] query, List<T> survivors) {
+            this.query = query;
+            this.survivors = survivors;
+        }
+    }
+}
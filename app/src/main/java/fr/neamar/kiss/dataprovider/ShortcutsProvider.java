@@ -2,6 +2,9 @@ package fr.neamar.kiss.dataprovider;
 
 import android.widget.Toast;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import fr.neamar.kiss.R;
 import fr.neamar.kiss.loader.LoadShortcutsPojos;
 import fr.neamar.kiss.normalizer.StringNormalizer;
@@ -42,27 +45,55 @@ public class ShortcutsProvider extends Provider<ShortcutPojo> {
         }
 
         FuzzyScore fuzzyScore = new FuzzyScore(queryNormalized.codePoints);
-        FuzzyScore.MatchInfo matchInfo;
-        boolean match;
+        List<ShortcutPojo> pojos = this.pojos;
+        List<ShortcutPojo> candidates = getCandidates(pojos, queryNormalized);
+        ArrayList<ShortcutPojo> survivors = new ArrayList<>();
 
-        for (ShortcutPojo pojo : pojos) {
-            matchInfo = fuzzyScore.match(pojo.normalizedName.codePoints);
-            match = matchInfo.match;
-            pojo.relevance = matchInfo.score;
+        // Score all names in one go, tags are only checked afterwards
+        int[][] names = new int[candidates.size()][];
+        for (int i = 0; i < names.length; i += 1) {
+            ShortcutPojo pojo = candidates.get(i);
+            // Skip pojos missing some characters of the query, null names are never matched
+            if (pojo.mayMatch(queryNormalized)) {
+                names[i] = pojo.normalizedName.codePoints;
+            }
+        }
+        if (searcher.isCancelled()) {
+            return;
+        }
+        int[] scores = new int[names.length];
+        fuzzyScore.scoreAll(names, scores);
+
+        for (int i = 0; i < names.length; i += 1) {
+            if (i % Searcher.CANCELLATION_CHECK_INTERVAL == 0 && searcher.isCancelled()) {
+                return;
+            }
+            ShortcutPojo pojo = candidates.get(i);
+            if (names[i] == null) {
+                continue;
+            }
+
+            int relevance = scores[i];
 
             // check relevance for tags
             if (pojo.getNormalizedTags() != null) {
-                matchInfo = fuzzyScore.match(pojo.getNormalizedTags().codePoints);
-                if (matchInfo.match && (!match || matchInfo.score > pojo.relevance)) {
-                    match = true;
-                    pojo.relevance = matchInfo.score;
+                int tagsScore = fuzzyScore.score(pojo.getNormalizedTags().codePoints);
+                if (tagsScore > relevance) {
+                    relevance = tagsScore;
                 }
             }
 
-            if (match && !searcher.addResult(pojo)) {
+            if (relevance == FuzzyScore.NO_MATCH) {
+                continue;
+            }
+            survivors.add(pojo);
+
+            if (!searcher.addResult(pojo, relevance)) {
                 return;
             }
         }
+
+        queryCache.put(pojos, queryNormalized.codePoints, survivors);
     }
 
     public Pojo findByName(String name) {
@@ -72,8 +72,7 @@ public class CalculatorProvider extends SimpleProvider {
             String queryProcessed = operation + readableResult;
             SearchPojo pojo = new SearchPojo("calculator://", queryProcessed, "", SearchPojo.CALCULATOR_QUERY);
 
-            pojo.relevance = 19;
-            searcher.addResult(pojo);
+            searcher.addResult(pojo, 19);
         }
     }
 }
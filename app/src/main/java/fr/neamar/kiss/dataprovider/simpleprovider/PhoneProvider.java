@@ -23,7 +23,7 @@ public class PhoneProvider extends SimpleProvider {
     public void requestResults(String query, Searcher searcher) {
         // Append an item only if query looks like a phone number and device has phone capabilities
         if (deviceIsPhone && phonePattern.matcher(query).find()) {
-            searcher.addResult(getResult(query, true));
+            searcher.addResult(getResult(query, true), 20);
         }
     }
 
@@ -46,7 +46,6 @@ public class PhoneProvider extends SimpleProvider {
         String historyId = PHONE_SCHEME + phoneNumber;
         String id = fromSearch ? PHONE_SCHEME + "search" : historyId;
         PhonePojo pojo = new PhonePojo(id, historyId, phoneNumber);
-        pojo.relevance = 20;
         pojo.setName(phoneNumber, false);
         return pojo;
     }
@@ -16,7 +16,6 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import fr.neamar.kiss.R;
-import fr.neamar.kiss.pojo.Pojo;
 import fr.neamar.kiss.pojo.SearchPojo;
 import fr.neamar.kiss.searcher.Searcher;
 
@@ -31,6 +30,7 @@ public class SearchProvider extends SimpleProvider {
     }
 
     private final ArrayList<SearchPojo> searchProviders = new ArrayList<>();
+    private String defaultSearchEngine = null;
     private final Context context;
 
     public SearchProvider(Context context) {
@@ -48,7 +48,7 @@ public class SearchProvider extends SimpleProvider {
         Set<String> availableProviders = prefs.getStringSet("available-search-providers", SearchProvider.getDefaultSearchProviders(context));
 
         // Get default search engine
-        String defaultSearchEngine = prefs.getString("default-search-provider", "Google");
+        defaultSearchEngine = prefs.getString("default-search-provider", "Google");
 
         assert selectedProviders != null;
         assert availableProviders != null;
@@ -56,12 +56,6 @@ public class SearchProvider extends SimpleProvider {
         for (String searchProvider : selectedProviders) {
             String url = getProviderUrl(availableProviders, searchProvider);
             SearchPojo pojo = new SearchPojo("", url, SearchPojo.SEARCH_QUERY);
-            // Super low relevance, should never be displayed before anything
-            pojo.relevance = -500;
-            if (defaultSearchEngine.equals(searchProvider))
-                // Display default search engine slightly higher
-                pojo.relevance += 1;
-
             pojo.setName(searchProvider, false);
             if (pojo.url != null) {
                 searchProviders.add(pojo);
@@ -70,17 +64,16 @@ public class SearchProvider extends SimpleProvider {
     }
 
     @Override
-    public void requestResults(String s, Searcher searcher) {
-        searcher.addResult(getResults(s).toArray(new Pojo[0]));
-    }
-
-    private ArrayList<Pojo> getResults(String query) {
-        ArrayList<Pojo> records = new ArrayList<>();
-
+    public void requestResults(String query, Searcher searcher) {
         if (prefs.getBoolean("enable-search", true)) {
             for (SearchPojo pojo : searchProviders) {
                 pojo.query = query;
-                records.add(pojo);
+                // Super low relevance, should never be displayed before anything
+                int relevance = -500;
+                if (pojo.getName().equals(defaultSearchEngine))
+                    // Display default search engine slightly higher
+                    relevance += 1;
+                searcher.addResult(pojo, relevance);
             }
         }
 
@@ -96,12 +89,10 @@ public class SearchProvider extends SimpleProvider {
             guessedUrl = guessedUrl.replace("http://", "https://");
             if (URLUtil.isValidUrl(guessedUrl)) {
                 SearchPojo pojo = new SearchPojo("search://url-access","", guessedUrl, SearchPojo.URL_QUERY);
-                pojo.relevance = 50;
                 pojo.setName(guessedUrl, false);
-                records.add(pojo);
+                searcher.addResult(pojo, 50);
             }
         }
-        return records;
     }
 
     @Nullable
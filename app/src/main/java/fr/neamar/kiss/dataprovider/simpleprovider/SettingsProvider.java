@@ -11,8 +11,10 @@ import android.provider.Settings;
 import androidx.annotation.DrawableRes;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import fr.neamar.kiss.R;
 import fr.neamar.kiss.normalizer.StringNormalizer;
@@ -23,8 +25,9 @@ import fr.neamar.kiss.utils.FuzzyScore;
 
 public class SettingsProvider extends SimpleProvider {
     private final static String SCHEME = "setting://";
-    private String settingName;
+    private final int[] settingName;
     private List<SettingPojo> pojos;
+    private final Map<String, SettingPojo> pojosById = new HashMap<>();
     private final SharedPreferences prefs;
 
     public SettingsProvider(Context context) {
@@ -60,7 +63,16 @@ public class SettingsProvider extends SimpleProvider {
                     Settings.ACTION_APPLICATION_DEVELOPMENT_SETTINGS, R.drawable.setting_dev));
         }
 
-        settingName = context.getString(R.string.settings_prefix).toLowerCase(Locale.ROOT);
+        String prefix = context.getString(R.string.settings_prefix).toLowerCase(Locale.ROOT);
+        settingName = new int[prefix.codePointCount(0, prefix.length())];
+        for (int i = 0, offset = 0; i < settingName.length; i += 1) {
+            settingName[i] = prefix.codePointAt(offset);
+            offset += Character.charCount(settingName[i]);
+        }
+
+        for (SettingPojo pojo : pojos) {
+            pojosById.put(pojo.id, pojo);
+        }
 
         this.prefs = PreferenceManager.getDefaultSharedPreferences(context);
 
@@ -105,23 +117,21 @@ public class SettingsProvider extends SimpleProvider {
         }
 
         FuzzyScore fuzzyScore = new FuzzyScore(queryNormalized.codePoints);
-        FuzzyScore.MatchInfo matchInfo;
-        boolean match;
+        // The localized setting name is the same for every pojo, only score it once
+        int settingNameScore = fuzzyScore.score(settingName);
 
         for (SettingPojo pojo : pojos) {
-            matchInfo = fuzzyScore.match(pojo.normalizedName.codePoints);
-            match = matchInfo.match;
-            pojo.relevance = matchInfo.score;
+            int relevance = fuzzyScore.score(pojo.normalizedName.codePoints);
 
-            if (!match) {
+            if (relevance == FuzzyScore.NO_MATCH) {
                 // Match localized setting name
-                matchInfo = fuzzyScore.match(settingName);
-                match = matchInfo.match;
-                pojo.relevance = matchInfo.score;
+                relevance = settingNameScore;
             }
 
-            if (match && !searcher.addResult(pojo)) {
-                return;
+            if (relevance != FuzzyScore.NO_MATCH) {
+                if (!searcher.addResult(pojo, relevance)) {
+                    return;
+                }
             }
         }
     }
@@ -146,12 +156,6 @@ public class SettingsProvider extends SimpleProvider {
      * @return null if not found
      */
     public Pojo findById(String id) {
-        for (Pojo pojo : pojos) {
-            if (pojo.id.equals(id)) {
-                return pojo;
-            }
-        }
-
-        return null;
+        return pojosById.get(id);
     }
 }
@@ -5,13 +5,23 @@ import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.util.Log;
 
+import androidx.annotation.VisibleForTesting;
+
 class DB extends SQLiteOpenHelper {
 
     private final static String DB_NAME = "kiss.s3db";
-    private final static int DB_VERSION = 6;
+    private final static int DB_VERSION = 8;
 
     DB(Context context) {
-        super(context, DB_NAME, null, DB_VERSION);
+        this(context, DB_NAME);
+    }
+
+    /**
+     * @param name file name of the database, null for an in-memory database
+     */
+    @VisibleForTesting
+    DB(Context context, String name) {
+        super(context, name, null, DB_VERSION);
     }
 
     @Override
@@ -21,6 +31,8 @@ class DB extends SQLiteOpenHelper {
                 + "icon TEXT, intent_uri TEXT NOT NULL, icon_blob BLOB)");
         createTags(database);
         addTimeStamps(database);
+        createHistoryIndexes(database);
+        createHistoryDaily(database);
     }
 
     private void createTags(SQLiteDatabase database) {
@@ -32,6 +44,41 @@ class DB extends SQLiteOpenHelper {
         database.execSQL("ALTER TABLE history ADD COLUMN timeStamp INTEGER DEFAULT 0  NOT NULL");
     }
 
+    /**
+     * Covering indexes for the filters on history: rows of a record (removal, counts),
+     * and rows by time (retention, adaptive history)
+     */
+    @VisibleForTesting
+    static void createHistoryIndexes(SQLiteDatabase database) {
+        database.execSQL("CREATE INDEX IF NOT EXISTS idx_history_record ON history(record, timeStamp);");
+        database.execSQL("CREATE INDEX IF NOT EXISTS idx_history_timestamp ON history(timeStamp, record);");
+    }
+
+    /**
+     * Uses of each record per day, kept longer than the raw history.
+     * Days are counted in UTC since the epoch.
+     */
+    private void createHistoryDaily(SQLiteDatabase database) {
+        database.execSQL("CREATE TABLE history_daily ( record TEXT NOT NULL, day INTEGER NOT NULL, count INTEGER NOT NULL,"
+                + " last_ts INTEGER NOT NULL, PRIMARY KEY (record, day))");
+        database.execSQL("CREATE INDEX idx_history_daily_day ON history_daily(day);");
+    }
+
+    /**
+     * Fill history_daily from the raw history
+     */
+    @VisibleForTesting
+    static void rollUpHistory(SQLiteDatabase database) {
+        database.execSQL("INSERT OR REPLACE INTO history_daily (record, day, count, last_ts)"
+                + " SELECT record, timeStamp / " + HistoryEngine.DAY_MS + ", COUNT(*), MAX(timeStamp) FROM history GROUP BY record, timeStamp / " + HistoryEngine.DAY_MS);
+    }
+
+    @VisibleForTesting
+    static void dropHistoryIndexes(SQLiteDatabase database) {
+        database.execSQL("DROP INDEX IF EXISTS idx_history_record;");
+        database.execSQL("DROP INDEX IF EXISTS idx_history_timestamp;");
+    }
+
     @Override
     public void onUpgrade(SQLiteDatabase database, int oldVersion, int newVersion) {
         Log.d("onUpgrade", "Updating database from version " + oldVersion + " to version " + newVersion);
@@ -51,6 +98,13 @@ class DB extends SQLiteOpenHelper {
                 case 5:
                     addTimeStamps(database);
                     // fall through
+                case 6:
+                    createHistoryIndexes(database);
+                    // fall through
+                case 7:
+                    createHistoryDaily(database);
+                    rollUpHistory(database);
+                    // fall through
                 default:
                     break;
             }
@@ -4,6 +4,12 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.AsyncTask;
+import android.util.Log;
+
+import androidx.annotation.VisibleForTesting;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -17,33 +23,92 @@ import fr.neamar.kiss.pojo.ShortcutPojo;
 
 public class DBHelper {
     private static SQLiteDatabase database = null;
+    /**
+     * Queries of the history, loaded on first use then kept in sync with the table
+     */
+    private static QueryHistoryTrie queryHistoryTrie = null;
+    /**
+     * Rows of the history, loaded on first use then kept in sync with the table
+     */
+    private static HistoryEngine historyEngine = null;
+
+    /**
+     * Writes are done in the background, in-memory structures are updated right away
+     */
+    private static WriteQueue writeQueue = null;
+
+    /**
+     * Statements compiled once for the current database.
+     * Insert statements are only used by the writer thread, the others while holding the DBHelper lock.
+     */
+    private static SQLiteStatement insertHistoryStatement = null;
+    private static SQLiteStatement updateDailyStatement = null;
+    private static SQLiteStatement insertDailyStatement = null;
+    private static SQLiteStatement countHistoryStatement = null;
+    private static SQLiteStatement countShortcutStatement = null;
+    private static SQLiteStatement insertTagStatement = null;
+
+    /**
+     * Maintenance runs at most once per interval
+     */
+    private static final long MAINTENANCE_INTERVAL_MS = 6 * 60 * 60 * 1000;
+    private static long lastMaintenance = 0;
 
     private DBHelper() {
     }
 
-    private static SQLiteDatabase getDatabase(Context context) {
+    private static synchronized SQLiteDatabase getDatabase(Context context) {
         if (database == null) {
             database = new DB(context).getReadableDatabase();
+            // Searches and history reads no longer wait for history writes
+            database.enableWriteAheadLogging();
+            writeQueue = new WriteQueue(database);
         }
         return database;
     }
 
-    private static ArrayList<ValuedHistoryRecord> readCursor(Cursor cursor) {
-        cursor.moveToFirst();
-
-        ArrayList<ValuedHistoryRecord> records = new ArrayList<>(cursor.getCount());
-        while (!cursor.isAfterLast()) {
-            ValuedHistoryRecord entry = new ValuedHistoryRecord();
+    /**
+     * Get the database once every pending write is committed, to read them back
+     */
+    private static SQLiteDatabase getFlushedDatabase(Context context) {
+        SQLiteDatabase db = getDatabase(context);
+        writeQueue.flush();
+        return db;
+    }
 
-            entry.record = cursor.getString(0);
-            entry.value = cursor.getInt(1);
+    private static void write(Context context, WriteQueue.Write write) {
+        getDatabase(context);
+        writeQueue.enqueue(write);
+    }
 
-            records.add(entry);
-            cursor.moveToNext();
+    /**
+     * Commit pending writes as soon as possible, without waiting for them
+     * (e.g. when the launcher goes to the background and may be killed)
+     */
+    public static synchronized void commitPendingWrites() {
+        if (writeQueue != null) {
+            writeQueue.requestFlush();
         }
-        cursor.close();
+    }
 
-        return records;
+    /**
+     * Use another database, forgetting everything computed from the previous one
+     */
+    @VisibleForTesting
+    static synchronized void setDatabase(SQLiteDatabase db) {
+        if (writeQueue != null) {
+            writeQueue.close();
+        }
+        database = db;
+        writeQueue = db != null ? new WriteQueue(db) : null;
+        queryHistoryTrie = null;
+        historyEngine = null;
+        insertHistoryStatement = null;
+        updateDailyStatement = null;
+        insertDailyStatement = null;
+        countHistoryStatement = null;
+        countShortcutStatement = null;
+        insertTagStatement = null;
     }
 
     /**
@@ -54,83 +119,135 @@ public class DBHelper {
      * @param record  record to insert
      */
     public static void insertHistory(Context context, String query, String record) {
-        SQLiteDatabase db = getDatabase(context);
-        ContentValues values = new ContentValues();
-        values.put("query", query);
-        values.put("record", record);
-        values.put("timeStamp", System.currentTimeMillis());
-        db.insert("history", null, values);
-
-        if (Math.random() <= 0.005) {
-            // Roughly every 200 inserts, clean up the history of items older than 3 months
-            long twoMonthsAgo = 7776000000L; // 1000 * 60 * 60 * 24 * 30 * 3;
-            db.delete("history", "timeStamp < ?", new String[]{Long.toString(System.currentTimeMillis() - twoMonthsAgo)});
-            // And vacuum the DB for speed
-            db.execSQL("VACUUM");
+        final long timeStamp = System.currentTimeMillis();
+        // Locked with the in-memory copies, so that one being loaded either sees the new row or gets it afterwards
+        synchronized (DBHelper.class) {
+            write(context, db -> {
+                if (insertHistoryStatement == null) {
+                    insertHistoryStatement = db.compileStatement("INSERT INTO history (query, record, timeStamp) VALUES (?, ?, ?)");
+                }
+                if (query == null) {
+                    insertHistoryStatement.bindNull(1);
+                } else {
+                    insertHistoryStatement.bindString(1, query);
+                }
+                insertHistoryStatement.bindString(2, record);
+                insertHistoryStatement.bindLong(3, timeStamp);
+                insertHistoryStatement.executeInsert();
+
+                // Count the use in the daily history, creating the day if it's the first use
+                if (updateDailyStatement == null) {
+                    updateDailyStatement = db.compileStatement("UPDATE history_daily SET count = count + 1, last_ts = MAX(last_ts, ?) WHERE record = ? AND day = ?");
+                    insertDailyStatement = db.compileStatement("INSERT INTO history_daily (record, day, count, last_ts) VALUES (?, ?, 1, ?)");
+                }
+                int day = HistoryEngine.getDay(timeStamp);
+                updateDailyStatement.bindLong(1, timeStamp);
+                updateDailyStatement.bindString(2, record);
+                updateDailyStatement.bindLong(3, day);
+                if (updateDailyStatement.executeUpdateDelete() == 0) {
+                    insertDailyStatement.bindString(1, record);
+                    insertDailyStatement.bindLong(2, day);
+                    insertDailyStatement.bindLong(3, timeStamp);
+                    insertDailyStatement.executeInsert();
+                }
+            });
+            if (queryHistoryTrie != null) {
+                queryHistoryTrie.add(query, record);
+            }
+            if (historyEngine != null) {
+                historyEngine.add(record, timeStamp);
+            }
         }
     }
 
-    public static void removeFromHistory(Context context, String record) {
-        SQLiteDatabase db = getDatabase(context);
-        db.delete("history", "record = ?", new String[]{record});
-    }
-
-    public static void clearHistory(Context context) {
-        SQLiteDatabase db = getDatabase(context);
-        db.delete("history", "", null);
+    /**
+     * Compact the raw history into the daily history, clean up history older than 3 months
+     * and give the freed space back, in the background.
+     * To be called when the launcher becomes idle, does nothing if it already ran recently.
+     */
+    public static synchronized void scheduleMaintenance(Context context) {
+        long now = System.currentTimeMillis();
+        if (now - lastMaintenance < MAINTENANCE_INTERVAL_MS) {
+            return;
+        }
+        lastMaintenance = now;
+
+        final SQLiteDatabase db = getDatabase(context);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            DatabaseMaintenance maintenance = new DatabaseMaintenance(db);
+            try {
+                maintenance.run(System.currentTimeMillis());
+            } catch (SQLiteException e) {
+                Log.e("DBHelper", "Unable to run database maintenance", e);
+            }
+            // Counts of deleted rows need to go, reload from the remaining ones on next use
+            synchronized (DBHelper.class) {
+                if (database == db && maintenance.deletedRows > 0) {
+                    queryHistoryTrie = null;
+                }
+                if (database == db && maintenance.deletedDays > 0) {
+                    historyEngine = null;
+                }
+            }
+        });
     }
 
-    private static Cursor getHistoryByFrecency(SQLiteDatabase db, int limit) {
-        // Since smart history sql uses a group by we don't use the whole history but a limit of recent apps
-        int historyWindowSize = limit * 30;
-
-        // order history based on frequency * recency
-        // frequency = #launches_for_app / #all_launches
-        // recency = 1 / position_of_app_in_normal_history
-        String sql = "SELECT record, count(*) FROM " +
-                " (" +
-                "   SELECT * FROM history ORDER BY _id DESC " +
-                "   LIMIT " + historyWindowSize + "" +
-                " ) small_history " +
-                " GROUP BY record " +
-                " ORDER BY " +
-                "   count(*) * 1.0 / (select count(*) from history LIMIT " + historyWindowSize + ") / ((SELECT _id FROM history ORDER BY _id DESC LIMIT 1) - max(_id) + 0.001) " +
-                " DESC " +
-                " LIMIT " + limit;
-        return db.rawQuery(sql, null);
+    public static void removeFromHistory(Context context, String record) {
+        synchronized (DBHelper.class) {
+            write(context, db -> {
+                db.delete("history", "record = ?", new String[]{record});
+                db.delete("history_daily", "record = ?", new String[]{record});
+            });
+            if (queryHistoryTrie != null) {
+                queryHistoryTrie.remove(record);
+            }
+            if (historyEngine != null) {
+                historyEngine.remove(record);
+            }
+        }
     }
 
-    private static Cursor getHistoryByFrequency(SQLiteDatabase db, int limit) {
-        // order history based on frequency
-        String sql = "SELECT record, count(*) FROM history" +
-                " GROUP BY record " +
-                " ORDER BY count(*) DESC " +
-                " LIMIT " + limit;
-        return db.rawQuery(sql, null);
+    public static void clearHistory(Context context) {
+        synchronized (DBHelper.class) {
+            write(context, db -> {
+                db.delete("history", "", null);
+                db.delete("history_daily", "", null);
+            });
+            if (queryHistoryTrie != null) {
+                queryHistoryTrie.clear();
+            }
+            if (historyEngine != null) {
+                historyEngine.clear();
+            }
+        }
     }
 
-    private static Cursor getHistoryByRecency(SQLiteDatabase db, int limit) {
-        return db.query(true, "history", new String[]{"record", "1"}, null, null,
-                null, null, "_id DESC", Integer.toString(limit));
+    private static synchronized QueryHistoryTrie getQueryHistoryTrie(Context context) {
+        if (queryHistoryTrie == null) {
+            QueryHistoryTrie trie = new QueryHistoryTrie();
+            Cursor cursor = getFlushedDatabase(context).query("history", new String[]{"query", "record"},
+                    "query IS NOT NULL", null, null, null, null);
+            while (cursor.moveToNext()) {
+                trie.add(cursor.getString(0), cursor.getString(1));
+            }
+            cursor.close();
+            queryHistoryTrie = trie;
+        }
+        return queryHistoryTrie;
     }
 
-    /**
-     * Get the most used history items adaptively based on a set period of time
-     *
-     * @param db    The SQL db
-     * @param hours How many hours back we want to test frequency against
-     * @param limit Maximum result size
-     * @return Cursor
-     */
-    private static Cursor getHistoryByAdaptive(SQLiteDatabase db, int hours, int limit) {
-        // order history based on frequency
-        String sql = "SELECT record, count(*) FROM history " +
-                "WHERE timeStamp >= 0 " +
-                "AND timeStamp >" + (System.currentTimeMillis() - (hours * 3600000)) +
-                " GROUP BY record " +
-                " ORDER BY count(*) DESC " +
-                " LIMIT " + limit;
-        return db.rawQuery(sql, null);
+    private static synchronized HistoryEngine getHistoryEngine(Context context) {
+        if (historyEngine == null) {
+            HistoryEngine engine = new HistoryEngine();
+            Cursor cursor = getFlushedDatabase(context).query("history_daily", new String[]{"record", "day", "count", "last_ts"},
+                    null, null, null, null, "day");
+            while (cursor.moveToNext()) {
+                engine.add(cursor.getString(0), cursor.getInt(1), cursor.getInt(2), cursor.getLong(3));
+            }
+            cursor.close();
+            historyEngine = engine;
+        }
+        return historyEngine;
     }
 
     /**
@@ -144,27 +261,26 @@ public class DBHelper {
     public static ArrayList<ValuedHistoryRecord> getHistory(Context context, int limit, String historyMode, boolean sortHistory) {
         ArrayList<ValuedHistoryRecord> records;
 
-        SQLiteDatabase db = getDatabase(context);
+        HistoryEngine engine = getHistoryEngine(context);
 
-        Cursor cursor;
         switch (historyMode) {
             case "frecency":
-                cursor = getHistoryByFrecency(db, limit);
+                // Only the recent history is used, not to favor records that were used a lot a long time ago
+                long now = System.currentTimeMillis();
+                records = engine.getByFrecency(now - 30 * HistoryEngine.DAY_MS, now, limit);
                 break;
             case "frequency":
-                cursor = getHistoryByFrequency(db, limit);
+                records = engine.getByFrequency(limit);
                 break;
             case "adaptive":
-                cursor = getHistoryByAdaptive(db, 36, limit);
+                // Most used records of the last 36 hours (from the start of that day)
+                records = engine.getSince(System.currentTimeMillis() - 36 * 3600000L, limit);
                 break;
             default:
-                cursor = getHistoryByRecency(db, limit);
+                records = engine.getByRecency(limit);
                 break;
         }
 
-        records = readCursor(cursor);
-        cursor.close();
-
         // sort history entries alphabetically
         if (sortHistory) {
             DataHandler dataHandler = KissApplication.getApplication(context).getDataHandler();
@@ -192,18 +308,18 @@ public class DBHelper {
      * @return total number of use for the application
      */
     public static int getHistoryLength(Context context) {
-        SQLiteDatabase db = getDatabase(context);
+        synchronized (DBHelper.class) {
+            if (historyEngine != null) {
+                return historyEngine.size();
+            }
 
-        // Cursor query (boolean distinct, String table, String[] columns,
-        // String selection, String[] selectionArgs, String groupBy, String
-        // having, String orderBy, String limit)
-        Cursor cursor = db.query(false, "history", new String[]{"COUNT(*)"}, null, null,
-                null, null, null, null);
+            SQLiteDatabase db = getFlushedDatabase(context);
 
-        cursor.moveToFirst();
-        int historyLength = cursor.getInt(0);
-        cursor.close();
-        return historyLength;
+            if (countHistoryStatement == null) {
+                countHistoryStatement = db.compileStatement("SELECT IFNULL(SUM(count), 0) FROM history_daily");
+            }
+            return (int) countHistoryStatement.simpleQueryForLong();
+        }
     }
 
     /**
@@ -215,50 +331,44 @@ public class DBHelper {
      */
     public static ArrayList<ValuedHistoryRecord> getPreviousResultsForQuery(Context context,
                                                                             String query) {
-        ArrayList<ValuedHistoryRecord> records;
-        SQLiteDatabase db = getDatabase(context);
-
-        // Cursor query (String table, String[] columns, String selection,
-        // String[] selectionArgs, String groupBy, String having, String
-        // orderBy)
-        Cursor cursor = db.query("history", new String[]{"record", "COUNT(*) AS count"},
-                "query LIKE ?", new String[]{query + "%"}, "record", null, "COUNT(*) DESC", "10");
-        records = readCursor(cursor);
-        cursor.close();
-        return records;
+        return getQueryHistoryTrie(context).getRecords(query, 10);
     }
 
     public static boolean insertShortcut(Context context, ShortcutRecord shortcut) {
-        SQLiteDatabase db = getDatabase(context);
-        // Do not add duplicate shortcuts
-        Cursor cursor = db.query("shortcuts", new String[]{"package", "intent_uri"},
-                "package = ? AND intent_uri = ?", new String[]{shortcut.packageName, shortcut.intentUri}, null, null, null, null);
-        if (cursor.moveToFirst()) {
-            return false;
-        }
-        cursor.close();
+        // Do not add duplicate shortcuts, including the ones still pending
+        synchronized (DBHelper.class) {
+            SQLiteDatabase db = getFlushedDatabase(context);
+            if (countShortcutStatement == null) {
+                countShortcutStatement = db.compileStatement("SELECT COUNT(*) FROM shortcuts WHERE package = ? AND intent_uri = ?");
+            }
+            countShortcutStatement.bindString(1, shortcut.packageName);
+            countShortcutStatement.bindString(2, shortcut.intentUri);
+            if (countShortcutStatement.simpleQueryForLong() > 0) {
+                return false;
+            }
 
-        ContentValues values = new ContentValues();
-        values.put("name", shortcut.name);
-        values.put("package", shortcut.packageName);
-        values.put("icon", (String) null); // Legacy field (for shortcuts before Oreo), not used anymore (we use icon_blob).
-        values.put("intent_uri", shortcut.intentUri);
-        values.put("icon_blob", shortcut.icon_blob);
+            ContentValues values = new ContentValues();
+            values.put("name", shortcut.name);
+            values.put("package", shortcut.packageName);
+            values.put("icon", (String) null); // Legacy field (for shortcuts before Oreo), not used anymore (we use icon_blob).
+            values.put("intent_uri", shortcut.intentUri);
+            values.put("icon_blob", shortcut.icon_blob);
 
-        db.insert("shortcuts", null, values);
-        return true;
+            write(context, writer -> writer.insert("shortcuts", null, values));
+            return true;
+        }
     }
 
     public static void removeShortcut(Context context, ShortcutPojo shortcut) {
-        SQLiteDatabase db = getDatabase(context);
-        db.delete("shortcuts", "package = ? AND intent_uri = ?", new String[]{shortcut.packageName, shortcut.intentUri});
+        String[] args = new String[]{shortcut.packageName, shortcut.intentUri};
+        write(context, db -> db.delete("shortcuts", "package = ? AND intent_uri = ?", args));
     }
 
     /**
      * Retrieve a list of all shortcuts for current package name, without icons.
      */
     public static ArrayList<ShortcutRecord> getShortcuts(Context context, String packageName) {
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getFlushedDatabase(context);
 
         // Cursor query (String table, String[] columns, String selection,
         // String[] selectionArgs, String groupBy, String having, String
@@ -287,7 +397,7 @@ public class DBHelper {
      * Retrieve a list of all shortcuts, without icons.
      */
     public static ArrayList<ShortcutRecord> getShortcuts(Context context) {
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getFlushedDatabase(context);
 
         // Cursor query (String table, String[] columns, String selection,
         // String[] selectionArgs, String groupBy, String having, String
@@ -314,7 +424,7 @@ public class DBHelper {
     }
 
     public static byte[] getShortcutIcon(Context context, int dbId) {
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getFlushedDatabase(context);
 
         // Cursor query (String table, String[] columns, String selection,
         // String[] selectionArgs, String groupBy, String having, String
@@ -332,16 +442,13 @@ public class DBHelper {
      * Remove shortcuts for a given package name
      */
     public static void removeShortcuts(Context context, String packageName) {
-        SQLiteDatabase db = getDatabase(context);
-
         // remove shortcuts
-        db.delete("shortcuts", "package LIKE ?", new String[]{"%" + packageName + "%"});
+        write(context, db -> db.delete("shortcuts", "package LIKE ?", new String[]{"%" + packageName + "%"}));
     }
 
     public static void removeAllShortcuts(Context context) {
-        SQLiteDatabase db = getDatabase(context);
         // delete whole table
-        db.delete("shortcuts", null, null);
+        write(context, db -> db.delete("shortcuts", null, null));
     }
 
     /**
@@ -352,11 +459,14 @@ public class DBHelper {
      * @param record  record to insert
      */
     public static void insertTagsForId(Context context, String tag, String record) {
-        SQLiteDatabase db = getDatabase(context);
-        ContentValues values = new ContentValues();
-        values.put("tag", tag);
-        values.put("record", record);
-        db.insert("tags", null, values);
+        write(context, db -> {
+            if (insertTagStatement == null) {
+                insertTagStatement = db.compileStatement("INSERT INTO tags (tag, record) VALUES (?, ?)");
+            }
+            insertTagStatement.bindString(1, tag);
+            insertTagStatement.bindString(2, record);
+            insertTagStatement.executeInsert();
+        });
     }
 
 
@@ -367,14 +477,12 @@ public class DBHelper {
      * @param record  record to insert
      */
     public static void deleteTagsForId(Context context, String record) {
-        SQLiteDatabase db = getDatabase(context);
-
-        db.delete("tags", "record = ?", new String[]{record});
+        write(context, db -> db.delete("tags", "record = ?", new String[]{record}));
     }
 
     public static Map<String, String> loadTags(Context context) {
         Map<String, String> records = new HashMap<>();
-        SQLiteDatabase db = getDatabase(context);
+        SQLiteDatabase db = getFlushedDatabase(context);
 
         Cursor cursor = db.query("tags", new String[]{"record", "tag"}, null, null, null, null, null);
 
@@ -0,0 +1,110 @@
+package fr.neamar.kiss.db;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+/**
+ * Housekeeping of the database, meant to run while the launcher is idle.
+ * <p>
+ * Raw history is compacted (its uses are already counted in the daily history), and history older
+ * than the retention period is deleted, in small transactions so that the writer thread and
+ * readers are never blocked for long. The pages freed are then given back to the
+ * file system a few at a time with incremental vacuum, instead of rewriting the whole database.
+ */
+class DatabaseMaintenance {
+    private static final String TAG = "DatabaseMaintenance";
+
+    /**
+     * History older than 3 months is deleted
+     */
+    static final long HISTORY_RETENTION_MS = 7776000000L; // 1000 * 60 * 60 * 24 * 30 * 3;
+    /**
+     * Raw history older than 2 weeks is deleted, its uses being counted in the daily history
+     */
+    static final long RAW_HISTORY_RETENTION_MS = 14 * HistoryEngine.DAY_MS;
+    /**
+     * Number of rows deleted per transaction
+     */
+    private static final int DELETE_CHUNK_SIZE = 500;
+    /**
+     * Maximum number of free pages given back per run
+     */
+    private static final int VACUUM_PAGES = 256;
+
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+
+    private final SQLiteDatabase db;
+
+    /**
+     * Raw history rows and daily history rows deleted, and pages given back by the last run
+     */
+    int deletedRows = 0;
+    int deletedDays = 0;
+    long reclaimedPages = 0;
+
+    DatabaseMaintenance(SQLiteDatabase db) {
+        this.db = db;
+    }
+
+    void run(long now) {
+        deletedRows = deleteChunked("history", "timeStamp", now - RAW_HISTORY_RETENTION_MS);
+        deletedDays = deleteChunked("history_daily", "day", HistoryEngine.getDay(now - HISTORY_RETENTION_MS));
+        reclaimedPages = vacuum();
+        Log.i(TAG, "Deleted " + deletedRows + " history rows and " + deletedDays + " daily history rows, reclaimed " + reclaimedPages + " pages");
+    }
+
+    /**
+     * Delete the rows of a table where column is lower than a value, one transaction per chunk
+     */
+    private int deleteChunked(String table, String column, long before) {
+        SQLiteStatement delete = db.compileStatement("DELETE FROM " + table + " WHERE rowid IN"
+                + " (SELECT rowid FROM " + table + " WHERE " + column + " < ? LIMIT " + DELETE_CHUNK_SIZE + ")");
+        try {
+            int deleted = 0;
+            int chunk;
+            do {
+                delete.bindLong(1, before);
+                chunk = delete.executeUpdateDelete();
+                deleted += chunk;
+            } while (chunk == DELETE_CHUNK_SIZE);
+            return deleted;
+        } finally {
+            delete.close();
+        }
+    }
+
+    private long vacuum() {
+        if (queryLong("PRAGMA auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+            // Databases are created without auto vacuum, the mode only applies after a full VACUUM.
+            // This is done once, every later run only reclaims a few pages.
+            long pages = queryLong("PRAGMA page_count");
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            return pages - queryLong("PRAGMA page_count");
+        }
+
+        long freePages = queryLong("PRAGMA freelist_count");
+        if (freePages == 0) {
+            return 0;
+        }
+        // Cursors are lazy, the pragma only runs once the cursor is stepped through
+        Cursor cursor = db.rawQuery("PRAGMA incremental_vacuum(" + VACUUM_PAGES + ")", null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        return freePages - queryLong("PRAGMA freelist_count");
+    }
+
+    private long queryLong(String sql) {
+        SQLiteStatement statement = db.compileStatement(sql);
+        try {
+            return statement.simpleQueryForLong();
+        } finally {
+            statement.close();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package fr.neamar.kiss.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * The daily history (history_daily table), kept in memory as primitive arrays to answer every
+ * history mode without querying SQLite.
+ * <p>
+ * There is one bucket per record and day it was used, with each record interned to a small integer.
+ * Per-record counters and last use are maintained on every use, so recency and frequency
+ * only need to sort the distinct records; frecency and adaptive modes only look at the buckets
+ * of the recent days. Memory and time scale with the number of records used each day,
+ * not with the number of uses.
+ */
+class HistoryEngine {
+    private static final int INITIAL_SIZE = 256;
+    static final long DAY_MS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Distinct records, and their index in the per-record arrays
+     */
+    private final ArrayList<String> records = new ArrayList<>();
+    private final HashMap<String, Integer> recordIndices = new HashMap<>();
+    private int[] recordCounts = new int[INITIAL_SIZE];
+    private long[] recordLastUses = new long[INITIAL_SIZE];
+
+    /**
+     * Buckets of the history_daily table, by day
+     */
+    private int bucketCount = 0;
+    private int[] bucketDays = new int[INITIAL_SIZE];
+    private int[] bucketRecords = new int[INITIAL_SIZE];
+    private int[] bucketCounts = new int[INITIAL_SIZE];
+    private long[] bucketLastUses = new long[INITIAL_SIZE];
+
+    /**
+     * Total number of uses
+     */
+    private int useCount = 0;
+
+    /**
+     * Day of a timestamp, as stored in history_daily
+     */
+    static int getDay(long timeStamp) {
+        return (int) (timeStamp / DAY_MS);
+    }
+
+    /**
+     * Record a use of a record
+     */
+    synchronized void add(String record, long timeStamp) {
+        add(record, getDay(timeStamp), 1, timeStamp);
+    }
+
+    /**
+     * Add uses of a record on a given day, buckets should be added by increasing day
+     */
+    synchronized void add(String record, int day, int count, long lastUse) {
+        Integer recordIndex = recordIndices.get(record);
+        if (recordIndex == null) {
+            recordIndex = records.size();
+            records.add(record);
+            recordIndices.put(record, recordIndex);
+            if (recordIndex == recordCounts.length) {
+                recordCounts = Arrays.copyOf(recordCounts, recordIndex * 2);
+                recordLastUses = Arrays.copyOf(recordLastUses, recordIndex * 2);
+            }
+        }
+
+        int bucket = findBucket(recordIndex, day);
+        if (bucket == -1) {
+            if (bucketCount == bucketDays.length) {
+                bucketDays = Arrays.copyOf(bucketDays, bucketCount * 2);
+                bucketRecords = Arrays.copyOf(bucketRecords, bucketCount * 2);
+                bucketCounts = Arrays.copyOf(bucketCounts, bucketCount * 2);
+                bucketLastUses = Arrays.copyOf(bucketLastUses, bucketCount * 2);
+            }
+            bucket = bucketCount;
+            bucketDays[bucket] = day;
+            bucketRecords[bucket] = recordIndex;
+            bucketCount += 1;
+        }
+        bucketCounts[bucket] += count;
+        bucketLastUses[bucket] = Math.max(bucketLastUses[bucket], lastUse);
+
+        recordCounts[recordIndex] += count;
+        recordLastUses[recordIndex] = Math.max(recordLastUses[recordIndex], lastUse);
+        useCount += count;
+    }
+
+    /**
+     * Only the buckets of the same day or later need to be looked at, they are the last ones
+     */
+    private int findBucket(int recordIndex, int day) {
+        for (int i = bucketCount - 1; i >= 0 && bucketDays[i] >= day; i -= 1) {
+            if (bucketDays[i] == day && bucketRecords[i] == recordIndex) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Remove all the uses of a record
+     */
+    synchronized void remove(String record) {
+        Integer recordIndex = recordIndices.get(record);
+        if (recordIndex == null || recordCounts[recordIndex] == 0) {
+            return;
+        }
+
+        int kept = 0;
+        for (int i = 0; i < bucketCount; i += 1) {
+            if (bucketRecords[i] != recordIndex) {
+                bucketDays[kept] = bucketDays[i];
+                bucketRecords[kept] = bucketRecords[i];
+                bucketCounts[kept] = bucketCounts[i];
+                bucketLastUses[kept] = bucketLastUses[i];
+                kept += 1;
+            }
+        }
+        Arrays.fill(bucketCounts, kept, bucketCount, 0);
+        Arrays.fill(bucketLastUses, kept, bucketCount, 0);
+        bucketCount = kept;
+
+        // The record keeps its index, it may be used again
+        useCount -= recordCounts[recordIndex];
+        recordCounts[recordIndex] = 0;
+        recordLastUses[recordIndex] = 0;
+    }
+
+    synchronized void clear() {
+        records.clear();
+        recordIndices.clear();
+        Arrays.fill(recordCounts, 0);
+        Arrays.fill(recordLastUses, 0);
+        Arrays.fill(bucketCounts, 0);
+        Arrays.fill(bucketLastUses, 0);
+        bucketCount = 0;
+        useCount = 0;
+    }
+
+    /**
+     * @return total number of uses
+     */
+    synchronized int size() {
+        return useCount;
+    }
+
+    /**
+     * Most recently used records first, value is always 1
+     */
+    synchronized ArrayList<ValuedHistoryRecord> getByRecency(int limit) {
+        Integer[] sorted = getUsedRecords();
+        Arrays.sort(sorted, (a, b) -> Long.compare(recordLastUses[b], recordLastUses[a]));
+        return toValuedRecords(sorted, null, limit, 1);
+    }
+
+    /**
+     * Most used records first, value is the number of uses
+     */
+    synchronized ArrayList<ValuedHistoryRecord> getByFrequency(int limit) {
+        Integer[] sorted = getUsedRecords();
+        Arrays.sort(sorted, (a, b) -> {
+            int comparison = Integer.compare(recordCounts[b], recordCounts[a]);
+            return comparison != 0 ? comparison : Long.compare(recordLastUses[b], recordLastUses[a]);
+        });
+        return toValuedRecords(sorted, recordCounts, limit, 0);
+    }
+
+    /**
+     * Order records by frequency * recency over a period:
+     * frequency = number of uses in the period, recency = 1 / time elapsed since the last use.
+     * Value is the number of uses in the period.
+     *
+     * @param since timestamp of the beginning of the period, rounded down to its day
+     * @param now   current timestamp
+     */
+    synchronized ArrayList<ValuedHistoryRecord> getByFrecency(long since, final long now, int limit) {
+        final int[] periodCounts = new int[records.size()];
+        final long[] periodLastUses = new long[records.size()];
+        Integer[] sorted = sumSince(since, periodCounts, periodLastUses);
+        Arrays.sort(sorted, (a, b) -> Double.compare(
+                periodCounts[b] / (now - periodLastUses[b] + 1.0),
+                periodCounts[a] / (now - periodLastUses[a] + 1.0)));
+        return toValuedRecords(sorted, periodCounts, limit, 0);
+    }
+
+    /**
+     * Most used records since a given time first, value is the number of uses in this period.
+     *
+     * @param since timestamp of the beginning of the period, rounded down to its day
+     */
+    synchronized ArrayList<ValuedHistoryRecord> getSince(long since, int limit) {
+        final int[] periodCounts = new int[records.size()];
+        final long[] periodLastUses = new long[records.size()];
+        Integer[] sorted = sumSince(since, periodCounts, periodLastUses);
+        Arrays.sort(sorted, (a, b) -> {
+            int comparison = Integer.compare(periodCounts[b], periodCounts[a]);
+            return comparison != 0 ? comparison : Long.compare(periodLastUses[b], periodLastUses[a]);
+        });
+        return toValuedRecords(sorted, periodCounts, limit, 0);
+    }
+
+    /**
+     * Sum the uses of each record from the day of since
+     *
+     * @return indices of the records used in the period
+     */
+    private Integer[] sumSince(long since, int[] periodCounts, long[] periodLastUses) {
+        int sinceDay = getDay(since);
+        ArrayList<Integer> used = new ArrayList<>();
+        // All buckets are walked, in case the clock went back in time and they are not in order
+        for (int i = 0; i < bucketCount; i += 1) {
+            if (bucketDays[i] < sinceDay) {
+                continue;
+            }
+            int recordIndex = bucketRecords[i];
+            if (periodCounts[recordIndex] == 0) {
+                used.add(recordIndex);
+            }
+            periodCounts[recordIndex] += bucketCounts[i];
+            periodLastUses[recordIndex] = Math.max(periodLastUses[recordIndex], bucketLastUses[i]);
+        }
+        return used.toArray(new Integer[0]);
+    }
+
+    private Integer[] getUsedRecords() {
+        ArrayList<Integer> used = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i += 1) {
+            if (recordCounts[i] > 0) {
+                used.add(i);
+            }
+        }
+        return used.toArray(new Integer[0]);
+    }
+
+    /**
+     * @param values       value of each record index, null to use defaultValue
+     * @param defaultValue value to use when values is null
+     */
+    private ArrayList<ValuedHistoryRecord> toValuedRecords(Integer[] sorted, int[] values, int limit, int defaultValue) {
+        int count = Math.min(limit, sorted.length);
+        ArrayList<ValuedHistoryRecord> valuedRecords = new ArrayList<>(count);
+        for (int i = 0; i < count; i += 1) {
+            ValuedHistoryRecord entry = new ValuedHistoryRecord();
+            entry.record = records.get(sorted[i]);
+            entry.value = values != null ? values[sorted[i]] : defaultValue;
+            valuedRecords.add(entry);
+        }
+        return valuedRecords;
+    }
+}
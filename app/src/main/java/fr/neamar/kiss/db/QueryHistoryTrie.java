@@ -0,0 +1,165 @@
+package fr.neamar.kiss.db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Past queries from the history, as a trie of their characters.
+ * <p>
+ * Each node counts how many times every record was selected after a query starting with the
+ * prefix leading to this node, so that finding the records previously selected for a prefix
+ * is a walk down the trie instead of a scan of the whole history.
+ * Like SQLite's LIKE operator, prefixes are case insensitive for ASCII characters only.
+ */
+class QueryHistoryTrie {
+    private final Node root = new Node();
+
+    /**
+     * Record a selection
+     *
+     * @param query  query typed before selecting the record, null when selected outside of a search
+     * @param record id of the selected record
+     */
+    synchronized void add(String query, String record) {
+        if (query == null) {
+            return;
+        }
+
+        Node node = root;
+        node.increment(record);
+        for (int i = 0; i < query.length(); i += 1) {
+            node = node.getOrCreateChild(fold(query.charAt(i)));
+            node.increment(record);
+        }
+    }
+
+    /**
+     * Forget every selection of a record
+     */
+    synchronized void remove(String record) {
+        root.remove(record);
+    }
+
+    synchronized void clear() {
+        root.children = null;
+        root.keys = null;
+        root.childCount = 0;
+        root.counts.clear();
+        root.top = null;
+    }
+
+    /**
+     * Retrieve the records most selected after a query starting with prefix
+     *
+     * @param prefix query being typed
+     * @param limit  max number of records to retrieve
+     * @return records with their number of selections, most selected first
+     */
+    synchronized ArrayList<ValuedHistoryRecord> getRecords(String prefix, int limit) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i += 1) {
+            node = node.getChild(fold(prefix.charAt(i)));
+        }
+
+        if (node == null) {
+            return new ArrayList<>(0);
+        }
+
+        ValuedHistoryRecord[] top = node.getTop(limit);
+        ArrayList<ValuedHistoryRecord> records = new ArrayList<>(top.length);
+        for (ValuedHistoryRecord entry : top) {
+            // Callers own the returned records
+            ValuedHistoryRecord copy = new ValuedHistoryRecord();
+            copy.record = entry.record;
+            copy.value = entry.value;
+            records.add(copy);
+        }
+        return records;
+    }
+
+    private static char fold(char c) {
+        return c < 128 ? Character.toLowerCase(c) : c;
+    }
+
+    private static final class Node {
+        char[] keys = null;
+        Node[] children = null;
+        int childCount = 0;
+        /**
+         * Number of selections of each record for this prefix
+         */
+        final HashMap<String, int[]> counts = new HashMap<>();
+        /**
+         * Most selected records, computed on demand
+         */
+        ValuedHistoryRecord[] top = null;
+
+        Node getChild(char key) {
+            for (int i = 0; i < childCount; i += 1) {
+                if (keys[i] == key) {
+                    return children[i];
+                }
+            }
+            return null;
+        }
+
+        Node getOrCreateChild(char key) {
+            Node child = getChild(key);
+            if (child == null) {
+                if (keys == null) {
+                    keys = new char[2];
+                    children = new Node[2];
+                } else if (childCount == keys.length) {
+                    keys = Arrays.copyOf(keys, childCount * 2);
+                    children = Arrays.copyOf(children, childCount * 2);
+                }
+                child = new Node();
+                keys[childCount] = key;
+                children[childCount] = child;
+                childCount += 1;
+            }
+            return child;
+        }
+
+        void increment(String record) {
+            int[] count = counts.get(record);
+            if (count == null) {
+                counts.put(record, new int[]{1});
+            } else {
+                count[0] += 1;
+            }
+            top = null;
+        }
+
+        void remove(String record) {
+            if (counts.remove(record) == null) {
+                // Children only contain records counted here
+                return;
+            }
+            top = null;
+            for (int i = 0; i < childCount; i += 1) {
+                children[i].remove(record);
+            }
+        }
+
+        ValuedHistoryRecord[] getTop(int limit) {
+            if (top != null && (top.length >= limit || top.length == counts.size())) {
+                return top.length <= limit ? top : Arrays.copyOf(top, limit);
+            }
+
+            ArrayList<ValuedHistoryRecord> all = new ArrayList<>(counts.size());
+            for (Map.Entry<String, int[]> entry : counts.entrySet()) {
+                ValuedHistoryRecord record = new ValuedHistoryRecord();
+                record.record = entry.getKey();
+                record.value = entry.getValue()[0];
+                all.add(record);
+            }
+            ValuedHistoryRecord[] sorted = all.toArray(new ValuedHistoryRecord[0]);
+            Arrays.sort(sorted, (a, b) -> Integer.compare(b.value, a.value));
+            top = sorted.length <= limit ? sorted : Arrays.copyOf(sorted, limit);
+            return top;
+        }
+    }
+}
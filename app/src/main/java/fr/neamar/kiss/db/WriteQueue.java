@@ -0,0 +1,155 @@
+package fr.neamar.kiss.db;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single thread writing to the database in the background.
+ * <p>
+ * Callers enqueue their writes and return immediately. The writer thread waits a little for
+ * more writes to come, then commits everything pending in a single transaction,
+ * so that a burst of writes costs one commit instead of one per write.
+ * Writes are always applied in the order they were enqueued.
+ */
+class WriteQueue {
+    private static final String TAG = "WriteQueue";
+
+    /**
+     * Maximum number of pending writes, callers wait for them to be written when the queue is full
+     */
+    private static final int CAPACITY = 512;
+    /**
+     * How long to wait for more writes before committing
+     */
+    private static final long LINGER_MS = 100;
+
+    interface Write {
+        void run(SQLiteDatabase db);
+    }
+
+    private final SQLiteDatabase db;
+    private final BlockingQueue<Write> pending = new ArrayBlockingQueue<>(CAPACITY);
+    private final Thread thread;
+
+    WriteQueue(SQLiteDatabase db) {
+        this.db = db;
+        thread = new Thread(this::loop, "DB writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Write later, on the writer thread
+     */
+    void enqueue(Write write) {
+        if (!pending.offer(write)) {
+            // Queue is full, don't let it grow: wait for everything pending to be written
+            flush();
+            enqueue(write);
+        }
+    }
+
+    /**
+     * Commit everything pending as soon as possible, without waiting
+     */
+    void requestFlush() {
+        enqueue(new Flush());
+    }
+
+    /**
+     * Wait until every write enqueued before this call is committed
+     */
+    void flush() {
+        if (Thread.currentThread() == thread) {
+            return;
+        }
+        Flush flush = new Flush();
+        try {
+            pending.put(flush);
+            flush.done.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the writer thread once everything pending is written
+     */
+    void close() {
+        flush();
+        thread.interrupt();
+    }
+
+    private void loop() {
+        ArrayList<Write> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(pending.take());
+                // Gather the whole burst, unless someone is waiting for the writes
+                while (!(batch.get(batch.size() - 1) instanceof Flush)) {
+                    Write write = pending.poll(LINGER_MS, TimeUnit.MILLISECONDS);
+                    if (write == null) {
+                        break;
+                    }
+                    batch.add(write);
+                }
+                pending.drainTo(batch);
+
+                commit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // Closed
+            commit(batch);
+        }
+    }
+
+    /**
+     * Write the batch in one transaction. Failures are logged and the batch is lost, but the
+     * writer thread keeps running and callers waiting for the batch are always released.
+     */
+    private void commit(ArrayList<Write> batch) {
+        try {
+            db.beginTransactionNonExclusive();
+            try {
+                for (Write write : batch) {
+                    try {
+                        write.run(db);
+                    } catch (RuntimeException e) {
+                        // Don't lose the other writes of the batch
+                        Log.e(TAG, "Unable to write to the database", e);
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } catch (RuntimeException e) {
+            // e.g. disk full or I/O error
+            Log.e(TAG, "Unable to commit " + batch.size() + " writes to the database", e);
+        } finally {
+            for (Write write : batch) {
+                if (write instanceof Flush) {
+                    ((Flush) write).done.countDown();
+                }
+            }
+        }
+    }
+
+    /**
+     * Marker write, released once the batch containing it is committed
+     */
+    private static final class Flush implements Write {
+        final CountDownLatch done = new CountDownLatch(1);
+
+        @Override
+        public void run(SQLiteDatabase db) {
+        }
+    }
+}
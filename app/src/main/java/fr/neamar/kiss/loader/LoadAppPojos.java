@@ -1,5 +1,6 @@
 package fr.neamar.kiss.loader;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ApplicationInfo;
@@ -10,22 +11,43 @@ import android.content.pm.ResolveInfo;
 import android.os.Build;
 import android.os.UserManager;
 import android.util.Log;
+import android.util.Pair;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 
 import fr.neamar.kiss.KissApplication;
 import fr.neamar.kiss.TagsHandler;
+import fr.neamar.kiss.dataprovider.AppProvider;
+import fr.neamar.kiss.dataprovider.Provider;
 import fr.neamar.kiss.pojo.AppPojo;
 import fr.neamar.kiss.utils.UserHandle;
 
 public class LoadAppPojos extends LoadPojos<AppPojo> {
 
     private final TagsHandler tagsHandler;
+    /**
+     * Packages to list, with their user, null to list every app
+     */
+    private final List<Pair<String, UserHandle>> packages;
+    /**
+     * Number of the load, so that the provider never replaces newer apps with the ones of an older load
+     */
+    private final int sequence;
+
+    public LoadAppPojos(Context context, int sequence) {
+        this(context, null, sequence);
+    }
 
-    public LoadAppPojos(Context context) {
+    /**
+     * Only list the apps of some packages
+     */
+    public LoadAppPojos(Context context, List<Pair<String, UserHandle>> packages, int sequence) {
         super(context, "app://");
         tagsHandler = KissApplication.getApplication(context).getDataHandler().getTagsHandler();
+        this.packages = packages;
+        this.sequence = sequence;
     }
 
     @Override
@@ -46,55 +68,103 @@ public class LoadAppPojos extends LoadPojos<AppPojo> {
             UserManager manager = (UserManager) ctx.getSystemService(Context.USER_SERVICE);
             LauncherApps launcher = (LauncherApps) ctx.getSystemService(Context.LAUNCHER_APPS_SERVICE);
 
-            // Handle multi-profile support introduced in Android 5 (#542)
-            for (android.os.UserHandle profile : manager.getUserProfiles()) {
-                UserHandle user = new UserHandle(manager.getSerialNumberForUser(profile), profile);
-                for (LauncherActivityInfo activityInfo : launcher.getActivityList(null, profile)) {
-                    ApplicationInfo appInfo = activityInfo.getApplicationInfo();
+            if (packages == null) {
+                // Handle multi-profile support introduced in Android 5 (#542)
+                for (android.os.UserHandle profile : manager.getUserProfiles()) {
+                    UserHandle user = new UserHandle(manager.getSerialNumberForUser(profile), profile);
+                    addActivities(apps, launcher.getActivityList(null, profile), user, excludedAppList, excludedFromHistoryAppList);
+                }
+            } else {
+                for (Pair<String, UserHandle> packageUser : packages) {
+                    android.os.UserHandle profile = packageUser.second.getRealHandle();
+                    addActivities(apps, launcher.getActivityList(packageUser.first, profile), packageUser.second, excludedAppList, excludedFromHistoryAppList);
+                }
+            }
+        } else {
+            PackageManager manager = ctx.getPackageManager();
 
-                    String id = user.addUserSuffixToString(pojoScheme + appInfo.packageName + "/" + activityInfo.getName(), '/');
+            if (packages == null) {
+                Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+                mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+                addActivities(apps, manager, manager.queryIntentActivities(mainIntent, 0), excludedAppList, excludedFromHistoryAppList);
+            } else {
+                for (Pair<String, UserHandle> packageUser : packages) {
+                    Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
+                    mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+                    mainIntent.setPackage(packageUser.first);
+                    addActivities(apps, manager, manager.queryIntentActivities(mainIntent, 0), excludedAppList, excludedFromHistoryAppList);
+                }
+            }
+        }
 
-                    boolean isExcluded = excludedAppList.contains(AppPojo.getComponentName(appInfo.packageName, activityInfo.getName(), user));
-                    boolean isExcludedFromHistory = excludedFromHistoryAppList.contains(id);
+        long end = System.nanoTime();
+        Log.i("time", Long.toString((end - start) / 1000000) + " milliseconds to list apps");
 
-                    AppPojo app = new AppPojo(id, appInfo.packageName, activityInfo.getName(), user,
-                            isExcluded, isExcludedFromHistory);
+        return apps;
+    }
 
-                    app.setName(activityInfo.getLabel().toString());
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private void addActivities(ArrayList<AppPojo> apps, List<LauncherActivityInfo> activities, UserHandle user,
+                               Set<String> excludedAppList, Set<String> excludedFromHistoryAppList) {
+        for (LauncherActivityInfo activityInfo : activities) {
+            ApplicationInfo appInfo = activityInfo.getApplicationInfo();
 
-                    app.setTags(tagsHandler.getTags(app.id));
+            String id = user.addUserSuffixToString(pojoScheme + appInfo.packageName + "/" + activityInfo.getName(), '/');
 
-                    apps.add(app);
-                }
-            }
-        } else {
-            PackageManager manager = ctx.getPackageManager();
+            boolean isExcluded = excludedAppList.contains(AppPojo.getComponentName(appInfo.packageName, activityInfo.getName(), user));
+            boolean isExcludedFromHistory = excludedFromHistoryAppList.contains(id);
+
+            AppPojo app = new AppPojo(id, appInfo.packageName, activityInfo.getName(), user,
+                    isExcluded, isExcludedFromHistory);
+
+            app.setName(activityInfo.getLabel().toString());
+
+            app.setTags(tagsHandler.getTags(app.id));
 
-            Intent mainIntent = new Intent(Intent.ACTION_MAIN, null);
-            mainIntent.addCategory(Intent.CATEGORY_LAUNCHER);
+            apps.add(app);
+            if (packages == null) {
+                // Apps of some packages are only applied once they are all loaded
+                publish(app);
+            }
+        }
+    }
 
-            for (ResolveInfo info : manager.queryIntentActivities(mainIntent, 0)) {
-                ApplicationInfo appInfo = info.activityInfo.applicationInfo;
-                String id = pojoScheme + appInfo.packageName + "/" + info.activityInfo.name;
-                boolean isExcluded = excludedAppList.contains(
-                        AppPojo.getComponentName(appInfo.packageName, info.activityInfo.name, new UserHandle())
-                );
-                boolean isExcludedFromHistory = excludedFromHistoryAppList.contains(id);
+    private void addActivities(ArrayList<AppPojo> apps, PackageManager manager, List<ResolveInfo> activities,
+                               Set<String> excludedAppList, Set<String> excludedFromHistoryAppList) {
+        for (ResolveInfo info : activities) {
+            ApplicationInfo appInfo = info.activityInfo.applicationInfo;
+            String id = pojoScheme + appInfo.packageName + "/" + info.activityInfo.name;
+            boolean isExcluded = excludedAppList.contains(
+                    AppPojo.getComponentName(appInfo.packageName, info.activityInfo.name, new UserHandle())
+            );
+            boolean isExcludedFromHistory = excludedFromHistoryAppList.contains(id);
 
-                AppPojo app = new AppPojo(id, appInfo.packageName, info.activityInfo.name, new UserHandle(),
-                        isExcluded, isExcludedFromHistory);
+            AppPojo app = new AppPojo(id, appInfo.packageName, info.activityInfo.name, new UserHandle(),
+                    isExcluded, isExcludedFromHistory);
 
-                app.setName(info.loadLabel(manager).toString());
+            app.setName(info.loadLabel(manager).toString());
 
-                app.setTags(tagsHandler.getTags(app.id));
+            app.setTags(tagsHandler.getTags(app.id));
 
-                apps.add(app);
+            apps.add(app);
+            if (packages == null) {
+                // Apps of some packages are only applied once they are all loaded
+                publish(app);
             }
         }
+    }
 
-        long end = System.nanoTime();
-        Log.i("time", Long.toString((end - start) / 1000000) + " milliseconds to list apps");
+    @Override
+    protected void onPostExecute(ArrayList<AppPojo> result) {
+        Provider<AppPojo> provider = this.provider != null ? this.provider.get() : null;
+        if (provider == null) {
+            return;
+        }
 
-        return apps;
+        if (packages == null) {
+            ((AppProvider) provider).onAppsLoaded(sequence, result);
+        } else {
+            ((AppProvider) provider).onPackagesLoaded(sequence, packages, result);
+        }
     }
 }
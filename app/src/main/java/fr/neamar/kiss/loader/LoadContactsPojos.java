@@ -1,10 +1,13 @@
 package fr.neamar.kiss.loader;
 
+import android.annotation.TargetApi;
 import android.content.ContentUris;
 import android.content.Context;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.Build;
 import android.provider.ContactsContract;
+import android.text.TextUtils;
 import android.util.Log;
 
 import java.util.ArrayList;
@@ -13,6 +16,8 @@ import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
 
+import fr.neamar.kiss.dataprovider.ContactsProvider;
+import fr.neamar.kiss.dataprovider.Provider;
 import fr.neamar.kiss.forwarder.Permission;
 import fr.neamar.kiss.normalizer.PhoneNormalizer;
 import fr.neamar.kiss.normalizer.StringNormalizer;
@@ -20,8 +25,36 @@ import fr.neamar.kiss.pojo.ContactsPojo;
 
 public class LoadContactsPojos extends LoadPojos<ContactsPojo> {
 
+    /**
+     * Only contacts changed after this time are listed, 0 to list every contact
+     */
+    private final long since;
+    /**
+     * Time the contacts were read at, 0 if they couldn't be read
+     */
+    private long syncTime = 0;
+    /**
+     * Lookup keys of all the contacts changed since, with or without a phone number
+     */
+    private final Set<String> changedLookupKeys = new HashSet<>();
+    /**
+     * Ids of the contacts deleted since
+     */
+    private final Set<Long> deletedContactIds = new HashSet<>();
+
     public LoadContactsPojos(Context context) {
+        this(context, 0);
+    }
+
+    /**
+     * Only list the contacts changed after some time, and the ones deleted since
+     *
+     * @param since time of the previous load, 0 to list every contact
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public LoadContactsPojos(Context context, long since) {
         super(context, "contact://");
+        this.since = since;
     }
 
     @Override
@@ -40,7 +73,49 @@ public class LoadContactsPojos extends LoadPojos<ContactsPojo> {
             return contacts;
         }
 
-        // Run query
+        syncTime = System.currentTimeMillis();
+        String changedSelection = null;
+        String[] changedSelectionArgs = null;
+        if (since > 0) {
+            changedSelection = ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?";
+            changedSelectionArgs = new String[]{Long.toString(since)};
+            loadChanges(c);
+        }
+
+        // Retrieve contacts' nicknames first, to complete each contact as soon as its phones are read
+        String nickSelection = ContactsContract.Data.MIMETYPE + "= ?";
+        String[] nickSelectionArgs = new String[]{ContactsContract.CommonDataKinds.Nickname.CONTENT_ITEM_TYPE};
+        if (changedSelection != null) {
+            nickSelection += " AND " + changedSelection;
+            nickSelectionArgs = new String[]{nickSelectionArgs[0], changedSelectionArgs[0]};
+        }
+        Cursor nickCursor = context.get().getContentResolver().query(
+                ContactsContract.Data.CONTENT_URI,
+                new String[]{
+                        ContactsContract.CommonDataKinds.Nickname.NAME,
+                        ContactsContract.Data.LOOKUP_KEY},
+                nickSelection,
+                nickSelectionArgs,
+                null);
+
+        Map<String, String> nicknames = new HashMap<>();
+        if (nickCursor != null) {
+            if (nickCursor.getCount() > 0) {
+                int lookupKeyIndex = nickCursor.getColumnIndex(ContactsContract.Data.LOOKUP_KEY);
+                int nickNameIndex = nickCursor.getColumnIndex(ContactsContract.CommonDataKinds.Nickname.NAME);
+                while (nickCursor.moveToNext()) {
+                    String lookupKey = nickCursor.getString(lookupKeyIndex);
+                    String nick = nickCursor.getString(nickNameIndex);
+
+                    if (nick != null && lookupKey != null) {
+                        nicknames.put(lookupKey, nick);
+                    }
+                }
+            }
+            nickCursor.close();
+        }
+
+        // Run query, phones of the same contact come one after the other
         Cursor cur = context.get().getContentResolver().query(
                 ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
                 new String[]{ContactsContract.Contacts.LOOKUP_KEY,
@@ -50,10 +125,9 @@ public class LoadContactsPojos extends LoadPojos<ContactsPojo> {
                         ContactsContract.CommonDataKinds.Phone.STARRED,
                         ContactsContract.CommonDataKinds.Phone.IS_PRIMARY,
                         ContactsContract.Contacts.PHOTO_ID,
-                        ContactsContract.Contacts._ID}, null, null, null);
-
-        // Prevent duplicates by keeping in memory encountered contacts.
-        Map<String, Set<ContactsPojo>> mapContacts = new HashMap<>();
+                        ContactsContract.CommonDataKinds.Phone._ID,
+                        ContactsContract.CommonDataKinds.Phone.CONTACT_ID}, changedSelection, changedSelectionArgs,
+                ContactsContract.Contacts.LOOKUP_KEY);
 
         if (cur != null) {
             if (cur.getCount() > 0) {
@@ -64,13 +138,18 @@ public class LoadContactsPojos extends LoadPojos<ContactsPojo> {
                 int starredIndex = cur.getColumnIndex(ContactsContract.CommonDataKinds.Phone.STARRED);
                 int isPrimaryIndex = cur.getColumnIndex(ContactsContract.CommonDataKinds.Phone.IS_PRIMARY);
                 int photoIdIndex = cur.getColumnIndex(ContactsContract.Contacts.PHOTO_ID);
-                int contactIdIndex = cur.getColumnIndex(ContactsContract.Contacts._ID);
+                int phoneIdIndex = cur.getColumnIndex(ContactsContract.CommonDataKinds.Phone._ID);
+                int contactIdIndex = cur.getColumnIndex(ContactsContract.CommonDataKinds.Phone.CONTACT_ID);
 
+                // Phones of the current contact, to prevent duplicates
+                Set<ContactsPojo> phones = new HashSet<>();
                 while (cur.moveToNext()) {
                     String lookupKey = cur.getString(lookupIndex);
                     int timesContacted = cur.getInt(timesContactedIndex);
                     String name = cur.getString(displayNameIndex);
-                    int contactId = cur.getInt(contactIdIndex);
+                    // Id of the phone row, only used to build the pojo id
+                    long phoneId = cur.getLong(phoneIdIndex);
+                    long contactId = cur.getLong(contactIdIndex);
 
                     String phone = cur.getString(numberIndex);
                     if (phone == null) {
@@ -87,78 +166,112 @@ public class LoadContactsPojos extends LoadPojos<ContactsPojo> {
                                 Long.parseLong(photoId));
                     }
 
-                    ContactsPojo contact = new ContactsPojo(pojoScheme + contactId + '/' + phone,
-                            lookupKey, phone, normalizedPhone, icon, primary, timesContacted,
+                    ContactsPojo contact = new ContactsPojo(pojoScheme + phoneId + '/' + phone,
+                            contactId, lookupKey, phone, normalizedPhone, icon, primary, timesContacted,
                             starred, false);
 
                     contact.setName(name);
 
                     if (contact.getName() != null) {
-                        if (mapContacts.containsKey(contact.lookupKey))
-                            mapContacts.get(contact.lookupKey).add(contact);
-                        else {
-                            Set<ContactsPojo> phones = new HashSet<>();
-                            phones.add(contact);
-                            mapContacts.put(contact.lookupKey, phones);
+                        if (!phones.isEmpty() && !TextUtils.equals(phones.iterator().next().lookupKey, lookupKey)) {
+                            // All the phones of the previous contact were read
+                            addContact(contacts, phones, nicknames);
+                            phones = new HashSet<>();
                         }
+                        phones.add(contact);
                     }
                 }
+                addContact(contacts, phones, nicknames);
             }
             cur.close();
         }
 
-        // Retrieve contacts' nicknames
-        Cursor nickCursor = context.get().getContentResolver().query(
-                ContactsContract.Data.CONTENT_URI,
-                new String[]{
-                        ContactsContract.CommonDataKinds.Nickname.NAME,
-                        ContactsContract.Data.LOOKUP_KEY},
-                ContactsContract.Data.MIMETYPE + "= ?",
-                new String[]{ContactsContract.CommonDataKinds.Nickname.CONTENT_ITEM_TYPE},
-                null);
+        long end = System.nanoTime();
+        Log.i("time", Long.toString((end - start) / 1000000) + " milliseconds to list contacts");
+        return contacts;
+    }
 
-        if (nickCursor != null) {
-            if (nickCursor.getCount() > 0) {
-                int lookupKeyIndex = nickCursor.getColumnIndex(ContactsContract.Data.LOOKUP_KEY);
-                int nickNameIndex = nickCursor.getColumnIndex(ContactsContract.CommonDataKinds.Nickname.NAME);
-                while (nickCursor.moveToNext()) {
-                    String lookupKey = nickCursor.getString(lookupKeyIndex);
-                    String nick = nickCursor.getString(nickNameIndex);
+    /**
+     * Add the phones of a contact to the results
+     *
+     * @param phones all the phones of the contact
+     */
+    private void addContact(ArrayList<ContactsPojo> contacts, Set<ContactsPojo> phones, Map<String, String> nicknames) {
+        if (phones.isEmpty()) {
+            return;
+        }
 
-                    if (nick != null && lookupKey != null && mapContacts.containsKey(lookupKey)) {
-                        for (ContactsPojo contact : mapContacts.get(lookupKey)) {
-                            contact.setNickname(nick);
-                        }
-                    }
-                }
+        String nick = nicknames.get(phones.iterator().next().lookupKey);
+        if (nick != null) {
+            for (ContactsPojo contact : phones) {
+                contact.setNickname(nick);
             }
-            nickCursor.close();
         }
 
-        for (Set<ContactsPojo> phones : mapContacts.values()) {
-            // Find primary phone and add this one.
-            Boolean hasPrimary = false;
-            for (ContactsPojo contact : phones) {
-                if (contact.primary) {
-                    contacts.add(contact);
-                    hasPrimary = true;
-                    break;
-                }
+        // Find primary phone and add this one.
+        for (ContactsPojo contact : phones) {
+            if (contact.primary) {
+                contacts.add(contact);
+                publish(contact);
+                return;
             }
+        }
 
-            // If no primary available, add all (excluding duplicates).
-            if (!hasPrimary) {
-                HashSet<String> added = new HashSet<>(phones.size());
-                for (ContactsPojo contact : phones) {
-                    if (!added.contains(contact.normalizedPhone.toString())) {
-                        added.add(contact.normalizedPhone.toString());
-                        contacts.add(contact);
-                    }
-                }
+        // If no primary available, add all (excluding duplicates).
+        HashSet<String> added = new HashSet<>(phones.size());
+        for (ContactsPojo contact : phones) {
+            if (!added.contains(contact.normalizedPhone.toString())) {
+                added.add(contact.normalizedPhone.toString());
+                contacts.add(contact);
+                publish(contact);
             }
         }
-        long end = System.nanoTime();
-        Log.i("time", Long.toString((end - start) / 1000000) + " milliseconds to list contacts");
-        return contacts;
+    }
+
+    /**
+     * Find the contacts changed or deleted since the previous load.
+     * Changed contacts may not have a phone number anymore, so they are all listed here.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    private void loadChanges(Context c) {
+        String[] selectionArgs = new String[]{Long.toString(since)};
+
+        Cursor changedCursor = c.getContentResolver().query(
+                ContactsContract.Contacts.CONTENT_URI,
+                new String[]{ContactsContract.Contacts.LOOKUP_KEY},
+                ContactsContract.Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?",
+                selectionArgs, null);
+        if (changedCursor != null) {
+            while (changedCursor.moveToNext()) {
+                changedLookupKeys.add(changedCursor.getString(0));
+            }
+            changedCursor.close();
+        }
+
+        Cursor deletedCursor = c.getContentResolver().query(
+                ContactsContract.DeletedContacts.CONTENT_URI,
+                new String[]{ContactsContract.DeletedContacts.CONTACT_ID},
+                ContactsContract.DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?",
+                selectionArgs, null);
+        if (deletedCursor != null) {
+            while (deletedCursor.moveToNext()) {
+                deletedContactIds.add(deletedCursor.getLong(0));
+            }
+            deletedCursor.close();
+        }
+    }
+
+    @Override
+    protected void onPostExecute(ArrayList<ContactsPojo> result) {
+        Provider<ContactsPojo> provider = this.provider != null ? this.provider.get() : null;
+        if (provider == null) {
+            return;
+        }
+
+        if (since == 0) {
+            ((ContactsProvider) provider).onContactsLoaded(syncTime, result);
+        } else {
+            ((ContactsProvider) provider).onContactsChanged(syncTime, changedLookupKeys, deletedContactIds, result);
+        }
     }
 }
@@ -5,15 +5,28 @@ import android.os.AsyncTask;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.List;
 
 import fr.neamar.kiss.dataprovider.Provider;
 import fr.neamar.kiss.pojo.Pojo;
 
-public abstract class LoadPojos<T extends Pojo> extends AsyncTask<Void, Void, ArrayList<T>> {
+public abstract class LoadPojos<T extends Pojo> extends AsyncTask<Void, List<T>, ArrayList<T>> {
+
+    /**
+     * Loaded pojos are handed to the provider once there are this many...
+     */
+    private static final int CHUNK_SIZE = 100;
+    /**
+     * ...or once the first one waited for this long
+     */
+    private static final int CHUNK_MAX_DELAY_MS = 100;
 
     final WeakReference<Context> context;
     String pojoScheme = "(none)://";
-    private WeakReference<Provider<T>> provider;
+    WeakReference<Provider<T>> provider;
+
+    private ArrayList<T> chunk = null;
+    private long chunkStart = 0;
 
     LoadPojos(Context context, String pojoScheme) {
         super();
@@ -29,6 +42,35 @@ public abstract class LoadPojos<T extends Pojo> extends AsyncTask<Void, Void, Ar
         return pojoScheme;
     }
 
+    /**
+     * Hand a loaded pojo to the provider, so that it can be searched before the end of the load.
+     * Must be called from doInBackground(), with every pojo that will be in the result.
+     */
+    @SuppressWarnings("unchecked")
+    void publish(T pojo) {
+        if (chunk == null) {
+            chunk = new ArrayList<>(CHUNK_SIZE);
+            chunkStart = System.currentTimeMillis();
+        }
+        chunk.add(pojo);
+
+        if (chunk.size() >= CHUNK_SIZE || System.currentTimeMillis() - chunkStart >= CHUNK_MAX_DELAY_MS) {
+            publishProgress(chunk);
+            chunk = null;
+        }
+    }
+
+    @SafeVarargs
+    @Override
+    protected final void onProgressUpdate(List<T>... chunks) {
+        Provider<T> provider = this.provider != null ? this.provider.get() : null;
+        if (provider != null) {
+            for (List<T> chunk : chunks) {
+                provider.loadChunk(chunk);
+            }
+        }
+    }
+
     @Override
     protected void onPostExecute(ArrayList<T> result) {
         super.onPostExecute(result);
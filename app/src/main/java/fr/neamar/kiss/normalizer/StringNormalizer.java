@@ -2,6 +2,9 @@ package fr.neamar.kiss.normalizer;
 
 import androidx.annotation.NonNull;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
 import java.text.Normalizer;
 import java.util.Arrays;
@@ -102,9 +105,19 @@ public class StringNormalizer {
     }
 
     public static class Result implements Comparable<Result> {
+        /**
+         * Number of classes returned by {@link #getCharacterClass(int)}, one bit each in a signature
+         */
+        public static final int CHARACTER_CLASSES = 64;
+
         private final int originalInputLastCharPosition;
         public final int[] codePoints;
         private final int[] mapPositions;
+        /**
+         * Set of the lower-cased characters contained in this string, one bit per class of characters.
+         * If a string can be fuzzy matched in another one, its signature is a subset of the other's.
+         */
+        public final long signature;
 
         Result(final int originalInputLastCharPosition,
                final int[] codePoints, final int[] mapPositions) {
@@ -113,6 +126,34 @@ public class StringNormalizer {
             this.originalInputLastCharPosition = originalInputLastCharPosition;
             this.codePoints = codePoints;
             this.mapPositions = mapPositions;
+            this.signature = computeSignature(codePoints);
+        }
+
+        private static long computeSignature(int[] codePoints) {
+            long signature = 0;
+            for (int codePoint : codePoints) {
+                signature |= 1L << getCharacterClass(codePoint);
+            }
+            return signature;
+        }
+
+        /**
+         * Fold a codepoint the same way FuzzyScore compares them (lower case), then give
+         * one class to each latin letter, digit or space, other characters sharing the remaining ones.
+         *
+         * @return a class between 0 and {@link #CHARACTER_CLASSES} (excluded)
+         */
+        public static int getCharacterClass(int codePoint) {
+            int lower = Character.toLowerCase(codePoint);
+            if (lower >= 'a' && lower <= 'z') {
+                return lower - 'a';
+            } else if (lower >= '0' && lower <= '9') {
+                return 26 + lower - '0';
+            } else if (lower == ' ') {
+                return 36;
+            } else {
+                return 37 + lower % 27;
+            }
         }
 
         public int length() {
@@ -132,6 +173,35 @@ public class StringNormalizer {
             return originalInputLastCharPosition;
         }
 
+        /**
+         * Write this result, to be read back by {@link #readFrom(ByteBuffer)}
+         */
+        public void writeTo(DataOutputStream out) throws IOException {
+            out.writeInt(originalInputLastCharPosition);
+            out.writeInt(codePoints.length);
+            for (int codePoint : codePoints) {
+                out.writeInt(codePoint);
+            }
+            for (int position : mapPositions) {
+                out.writeInt(position);
+            }
+        }
+
+        /**
+         * Read a result written by {@link #writeTo(DataOutputStream)}, without normalizing again
+         */
+        public static Result readFrom(ByteBuffer buffer) {
+            int originalInputLastCharPosition = buffer.getInt();
+            int length = buffer.getInt();
+            int[] codePoints = new int[length];
+            int[] mapPositions = new int[length];
+            buffer.asIntBuffer().get(codePoints);
+            buffer.position(buffer.position() + length * 4);
+            buffer.asIntBuffer().get(mapPositions);
+            buffer.position(buffer.position() + length * 4);
+            return new Result(originalInputLastCharPosition, codePoints, mapPositions);
+        }
+
         @Override
         public int compareTo(@NonNull Result that) {
             // this optimization is usually worthwhile, and can always be added
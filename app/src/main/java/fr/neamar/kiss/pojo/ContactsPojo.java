@@ -5,6 +5,7 @@ import android.net.Uri;
 import fr.neamar.kiss.normalizer.StringNormalizer;
 
 public final class ContactsPojo extends Pojo {
+    public final long contactId;
     public final String lookupKey;
 
     public final String phone;
@@ -28,10 +29,11 @@ public final class ContactsPojo extends Pojo {
 
     private String nickname = "";
 
-    public ContactsPojo(String id, String lookupKey, String phone, StringNormalizer.Result normalizedPhone,
+    public ContactsPojo(String id, long contactId, String lookupKey, String phone, StringNormalizer.Result normalizedPhone,
                         Uri icon, Boolean primary, int timesContacted, Boolean starred,
                         Boolean homeNumber) {
         super(id);
+        this.contactId = contactId;
         this.lookupKey = lookupKey;
         this.phone = phone;
         this.normalizedPhone = normalizedPhone;
@@ -40,6 +42,7 @@ public final class ContactsPojo extends Pojo {
         this.timesContacted = timesContacted;
         this.starred = starred;
         this.homeNumber = homeNumber;
+        updateSignature();
     }
 
     public String getNickname() {
@@ -55,5 +58,20 @@ public final class ContactsPojo extends Pojo {
             this.nickname = null;
             this.normalizedNickname = null;
         }
+        updateSignature();
+    }
+
+    /**
+     * Set the nickname with its already computed searchable version (e.g. read from a cache)
+     */
+    public void setNickname(String nickname, StringNormalizer.Result normalizedNickname) {
+        this.nickname = nickname;
+        this.normalizedNickname = normalizedNickname;
+        updateSignature();
+    }
+
+    @Override
+    public StringNormalizer.Result[] getSearchableFields() {
+        return new StringNormalizer.Result[]{normalizedName, normalizedNickname, normalizedPhone};
     }
 }
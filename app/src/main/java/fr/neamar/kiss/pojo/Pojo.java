@@ -13,11 +13,10 @@ public abstract class Pojo {
     public StringNormalizer.Result normalizedName = null;
     // Lower-cased name, for faster search
     //public String nameNormalized = "";
-    // How relevant is this record ? The higher, the most probable it will be
-    // displayed
-    public int relevance = 0;
     // Name for this pojo, e.g. app name
     String name = "";
+    // Union of the signatures of every searchable field, to discard pojos that can't match a query
+    private long signature = 0;
 
     public Pojo(String id) {
         this.id = id;
@@ -45,6 +44,16 @@ public abstract class Pojo {
             this.name = null;
             this.normalizedName = null;
         }
+        updateSignature();
+    }
+
+    /**
+     * Set the name with its already computed searchable version (e.g. read from a cache)
+     */
+    public void setName(String name, StringNormalizer.Result normalizedName) {
+        this.name = name;
+        this.normalizedName = normalizedName;
+        updateSignature();
     }
 
     public void setName(String name, boolean generateNormalization) {
@@ -53,7 +62,43 @@ public abstract class Pojo {
         } else {
             this.name = name;
             this.normalizedName = null;
+            updateSignature();
+        }
+    }
+
+    /**
+     * Quickly tell whether this pojo may match the query.
+     * When false, none of its searchable fields contains all the characters of the query.
+     *
+     * @param query normalized query
+     * @return false if the pojo can't match, true if it needs to be scored
+     */
+    public boolean mayMatch(StringNormalizer.Result query) {
+        return (query.signature & ~signature) == 0;
+    }
+
+    /**
+     * Recompute the signature, must be called every time a searchable field changes
+     */
+    void updateSignature() {
+        signature = computeSignature();
+    }
+
+    private long computeSignature() {
+        long signature = 0;
+        for (StringNormalizer.Result field : getSearchableFields()) {
+            if (field != null) {
+                signature |= field.signature;
+            }
         }
+        return signature;
+    }
+
+    /**
+     * @return normalized values of all the fields a query can match, null entries must be skipped
+     */
+    public StringNormalizer.Result[] getSearchableFields() {
+        return new StringNormalizer.Result[]{normalizedName};
     }
 
     /**
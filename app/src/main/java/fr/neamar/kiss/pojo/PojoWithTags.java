@@ -29,5 +29,20 @@ public class PojoWithTags extends Pojo {
             this.tags = null;
             this.normalizedTags = null;
         }
+        updateSignature();
+    }
+
+    /**
+     * Set the tags with their already computed searchable version (e.g. read from a cache)
+     */
+    public void setTags(String tags, StringNormalizer.Result normalizedTags) {
+        this.tags = tags;
+        this.normalizedTags = normalizedTags;
+        updateSignature();
+    }
+
+    @Override
+    public StringNormalizer.Result[] getSearchableFields() {
+        return new StringNormalizer.Result[]{normalizedName, normalizedTags};
     }
 }
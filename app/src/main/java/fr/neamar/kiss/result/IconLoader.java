@@ -0,0 +1,164 @@
+package fr.neamar.kiss.result;
+
+import android.content.Context;
+import android.graphics.drawable.Drawable;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+import android.widget.ImageView;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load the icons of the results in the background, on a few dedicated threads.
+ * <p>
+ * The last requests are loaded first, as they are for the views currently on screen. Requests
+ * of views recycled since are dropped, and results of the same pojo share a single load.
+ * Icons are loaded on many threads at once, so {@link Result#getDrawable} must be thread-safe.
+ * Must be used from the main thread.
+ */
+class IconLoader {
+    private static final int WORKERS = Math.max(1, Math.min(2, Runtime.getRuntime().availableProcessors() - 1));
+
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(WORKERS, WORKERS,
+            0L, TimeUnit.MILLISECONDS, new LinkedBlockingDeque<Runnable>() {
+        @Override
+        public boolean offer(Runnable runnable) {
+            // Workers take from the head: last in, first out
+            return offerFirst(runnable);
+        }
+    }, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            return new Thread(() -> {
+                // Leave the CPU to the UI thread while scrolling
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                runnable.run();
+            }, "IconLoader #" + count.incrementAndGet());
+        }
+    });
+
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+    /**
+     * Loads waiting or running, by pojo id
+     */
+    private static final HashMap<String, Load> LOADS = new HashMap<>();
+
+    private IconLoader() {
+    }
+
+    /**
+     * Icon requested for a view, stored as the view tag until the icon is set
+     */
+    static final class Request {
+        private final WeakReference<ImageView> imageView;
+        private final WeakReference<Result> result;
+        private final Load load;
+        private boolean isCancelled = false;
+
+        private Request(ImageView imageView, Result result, Load load) {
+            this.imageView = new WeakReference<>(imageView);
+            this.result = new WeakReference<>(result);
+            this.load = load;
+        }
+
+        boolean isFor(Result result) {
+            return result.equals(this.result.get());
+        }
+    }
+
+    private static final class Load implements Runnable {
+        private final String key;
+        private final WeakReference<Result> result;
+        private final WeakReference<Context> context;
+        private final ArrayList<Request> requests = new ArrayList<>();
+        private volatile boolean isCancelled = false;
+
+        private Load(String key, Result result, Context context) {
+            this.key = key;
+            this.result = new WeakReference<>(result);
+            this.context = new WeakReference<>(context);
+        }
+
+        @Override
+        public void run() {
+            Result result = this.result.get();
+            Context context = this.context.get();
+            final Drawable drawable = isCancelled || result == null || context == null ? null : result.getDrawable(context);
+            HANDLER.post(() -> onLoaded(drawable));
+        }
+
+        private void onLoaded(Drawable drawable) {
+            if (LOADS.get(key) == this) {
+                LOADS.remove(key);
+            }
+
+            boolean isDrawableUsed = false;
+            for (Request request : requests) {
+                ImageView image = request.imageView.get();
+                Result result = request.result.get();
+                if (request.isCancelled || drawable == null || image == null || image.getTag() != request) {
+                    continue;
+                }
+                // A drawable can't be shared by many views
+                Drawable.ConstantState state = drawable.getConstantState();
+                image.setImageDrawable(isDrawableUsed && state != null ? state.newDrawable() : drawable);
+                isDrawableUsed = true;
+                // the ImageView will store the Result once the icon is set
+                image.setTag(result);
+            }
+        }
+    }
+
+    /**
+     * Load the icon of a result in the background, and set it in the view if still displaying this result
+     */
+    static void load(ImageView image, Result result) {
+        image.setImageResource(android.R.color.transparent);
+
+        String key = result.pojo.id;
+        Load load = LOADS.get(key);
+        if (load == null) {
+            load = new Load(key, result, image.getContext());
+            LOADS.put(key, load);
+            EXECUTOR.execute(load);
+        } else {
+            // Move it before the other loads, it's needed on screen now
+            if (EXECUTOR.getQueue().remove(load)) {
+                EXECUTOR.execute(load);
+            }
+        }
+
+        Request request = new Request(image, result, load);
+        load.requests.add(request);
+        image.setTag(request);
+    }
+
+    /**
+     * Drop a request, the load itself is dropped if it's not needed anymore
+     */
+    static void cancel(Request request) {
+        request.isCancelled = true;
+
+        Load load = request.load;
+        for (Request other : load.requests) {
+            if (!other.isCancelled) {
+                return;
+            }
+        }
+        load.isCancelled = true;
+        EXECUTOR.remove(load);
+        if (LOADS.get(load.key) == load) {
+            LOADS.remove(load.key);
+        }
+    }
+}
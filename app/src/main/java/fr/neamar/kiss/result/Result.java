@@ -4,7 +4,6 @@ import android.content.Context;
 import android.content.res.TypedArray;
 import android.graphics.Color;
 import android.graphics.drawable.Drawable;
-import android.os.AsyncTask;
 import android.preference.PreferenceManager;
 import android.text.Spannable;
 import android.text.SpannableString;
@@ -24,7 +23,6 @@ import androidx.annotation.LayoutRes;
 import androidx.annotation.NonNull;
 import androidx.annotation.StringRes;
 
-import java.lang.ref.WeakReference;
 import java.util.List;
 
 import fr.neamar.kiss.BuildConfig;
@@ -53,11 +51,21 @@ public abstract class Result {
      */
     @NonNull
     final Pojo pojo;
+    /**
+     * How relevant the pojo was for the search that displayed this result
+     */
+    private int relevance = 0;
 
     Result(@NonNull Pojo pojo) {
         this.pojo = pojo;
     }
 
+    public static Result fromPojo(QueryInterface parent, Pojo pojo, int relevance) {
+        Result result = fromPojo(parent, pojo);
+        result.relevance = relevance;
+        return result;
+    }
+
     public static Result fromPojo(QueryInterface parent, Pojo pojo) {
         if (pojo instanceof AppPojo)
             return new AppResult((AppPojo) pojo);
@@ -222,7 +230,7 @@ public abstract class Result {
         }
 
         if (BuildConfig.DEBUG) {
-            adapter.add(new ListPopup.Item("Relevance: " + pojo.relevance));
+            adapter.add(new ListPopup.Item("Relevance: " + relevance));
         }
 
         return menu;
@@ -327,18 +335,19 @@ public abstract class Result {
     }
 
     void setAsyncDrawable(ImageView view) {
-        // the ImageView tag will store the async task if it's running
-        if (view.getTag() instanceof AsyncSetImage) {
-            AsyncSetImage asyncSetImage = (AsyncSetImage) view.getTag();
-            if (this.equals(asyncSetImage.appResultWeakReference.get())) {
+        // the ImageView tag will store the icon request if it's running
+        if (view.getTag() instanceof IconLoader.Request) {
+            IconLoader.Request request = (IconLoader.Request) view.getTag();
+            if (request.isFor(this)) {
                 // we are already loading the icon for this
                 return;
             } else {
-                asyncSetImage.cancel(true);
+                // the view was recycled
+                IconLoader.cancel(request);
                 view.setTag(null);
             }
         }
-        // the ImageView will store the Result after the AsyncTask finished
+        // the ImageView will store the Result once the icon is loaded
         else if (this.equals(view.getTag())) {
             ((Result) view.getTag()).setDrawableCache(view.getDrawable());
             return;
@@ -347,14 +356,10 @@ public abstract class Result {
             view.setImageDrawable(getDrawable(view.getContext()));
             view.setTag(this);
         } else {
-            view.setTag(createAsyncSetImage(view).execute());
+            IconLoader.load(view, this);
         }
     }
 
-    private AsyncSetImage createAsyncSetImage(ImageView imageView) {
-        return new AsyncSetImage(imageView, this);
-    }
-
     /**
      * Helper function to get a view
      *
@@ -398,41 +403,4 @@ public abstract class Result {
         // we can consider hashCode unique enough in this context
         return this.pojo.id.hashCode();
     }
-
-    static class AsyncSetImage extends AsyncTask<Void, Void, Drawable> {
-        final WeakReference<ImageView> imageViewWeakReference;
-        final WeakReference<Result> appResultWeakReference;
-
-        AsyncSetImage(ImageView image, Result result) {
-            super();
-            image.setTag(this);
-            image.setImageResource(android.R.color.transparent);
-            this.imageViewWeakReference = new WeakReference<>(image);
-            this.appResultWeakReference = new WeakReference<>(result);
-        }
-
-        @Override
-        protected Drawable doInBackground(Void... voids) {
-            ImageView image = imageViewWeakReference.get();
-            if (isCancelled() || image == null || image.getTag() != this) {
-                imageViewWeakReference.clear();
-                return null;
-            }
-            Result result = appResultWeakReference.get();
-            if (result == null)
-                return null;
-            return result.getDrawable(image.getContext());
-        }
-
-        @Override
-        protected void onPostExecute(Drawable drawable) {
-            ImageView image = imageViewWeakReference.get();
-            if (isCancelled() || image == null || drawable == null) {
-                imageViewWeakReference.clear();
-                return;
-            }
-            image.setImageDrawable(drawable);
-            image.setTag(appResultWeakReference.get());
-        }
-    }
 }
@@ -1,16 +1,11 @@
 package fr.neamar.kiss.searcher;
 
-import android.content.Context;
-
-import java.util.Collections;
 import java.util.List;
-import java.util.PriorityQueue;
 
 import fr.neamar.kiss.KissApplication;
 import fr.neamar.kiss.MainActivity;
 import fr.neamar.kiss.pojo.AppPojo;
 import fr.neamar.kiss.pojo.Pojo;
-import fr.neamar.kiss.pojo.PojoComparator;
 
 /**
  * Returns the list of all applications on the system
@@ -21,9 +16,9 @@ public class ApplicationsSearcher extends Searcher {
     }
 
     @Override
-    PriorityQueue<Pojo> getPojoProcessor(Context context) {
+    TopK getPojoProcessor() {
         // Sort from A to Z, so reverse (last item needs to be A, listview starts at the bottom)
-        return new PriorityQueue<>(DEFAULT_MAX_RESULTS, Collections.reverseOrder(new PojoComparator()));
+        return new TopK(getMaxResultCount(), true);
     }
 
     @Override
@@ -39,8 +34,11 @@ public class ApplicationsSearcher extends Searcher {
 
         List<AppPojo> pojos = KissApplication.getApplication(activity).getDataHandler().getApplicationsWithoutExcluded();
 
-        if (pojos != null)
-           this.addResult(pojos.toArray(new Pojo[0]));
+        if (pojos != null) {
+            for (Pojo pojo : pojos) {
+                this.addResult(pojo, 0);
+            }
+        }
         return null;
     }
 
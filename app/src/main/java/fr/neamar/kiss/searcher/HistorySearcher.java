@@ -64,10 +64,8 @@ public class HistorySearcher extends Searcher {
 
         int size = pojos.size();
         for(int i = 0; i < size; i += 1) {
-            pojos.get(i).relevance = size - i;
+            this.addResult(pojos.get(i), size - i);
         }
-
-        this.addResult(pojos.toArray(new Pojo[0]));
         return null;
     }
 }
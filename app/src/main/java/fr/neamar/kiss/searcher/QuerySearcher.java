@@ -50,16 +50,15 @@ public class QuerySearcher extends Searcher {
     }
 
     @Override
-    public boolean addResult(Pojo... pojos) {
+    public boolean addResult(Pojo pojo, int relevance) {
         // Give a boost if item was previously selected for this query
-        for (Pojo pojo : pojos) {
-            if (knownIds.containsKey(pojo.id)) {
-                pojo.relevance += 25 * knownIds.get(pojo.id);
-            }
+        Integer timesSelected = knownIds.get(pojo.id);
+        if (timesSelected != null) {
+            relevance += 25 * timesSelected;
         }
 
         // call super implementation to update the adapter
-        return super.addResult(pojos);
+        return super.addResult(pojo, relevance);
     }
 
     /**
@@ -68,7 +67,7 @@ public class QuerySearcher extends Searcher {
     @Override
     protected Void doInBackground(Void... voids) {
         MainActivity activity = activityWeakReference.get();
-        if (activity == null)
+        if (activity == null || isCancelled())
             return null;
 
         // Have we ever made the same query and selected something ?
@@ -78,6 +77,9 @@ public class QuerySearcher extends Searcher {
             knownIds.put(id.record, id.value);
         }
 
+        if (isCancelled())
+            return null;
+
         // Request results via "addResult"
         KissApplication.getApplication(activity).getDataHandler().requestResults(trimmedQuery, this);
         return null;
@@ -0,0 +1,98 @@
+package fr.neamar.kiss.searcher;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.MainThread;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs searchers one at a time, the latest query winning.
+ * <p>
+ * While a search is running, a new one is not started right away but debounced
+ * for about the time searches take to complete: when the user types faster than results
+ * can be computed, intermediate queries are replaced before they even start.
+ * Searchers cancelled before their turn are dropped without running.
+ */
+public class SearchScheduler implements Executor {
+    /**
+     * Never wait longer than this before starting a search
+     */
+    private static final long MAX_DEBOUNCE_MS = 150;
+    /**
+     * Weight of the last search in the average latency
+     */
+    private static final float LATENCY_SMOOTHING = 0.3f;
+
+    // define a different thread than the default AsyncTask thread or else we will block everything else that uses AsyncTask while we search
+    private final ExecutorService thread = Executors.newSingleThreadExecutor();
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    private Runnable pendingStart = null;
+    private volatile int runningCount = 0;
+    private float averageLatency = 0;
+
+    /**
+     * Start the searcher, possibly after a short delay if a search is already running.
+     * A searcher still waiting is replaced by this one.
+     */
+    @MainThread
+    public void schedule(final Searcher searcher) {
+        cancelPending();
+
+        long delay = runningCount > 0 ? Math.min(MAX_DEBOUNCE_MS, (long) averageLatency) : 0;
+        if (delay == 0) {
+            searcher.executeOnExecutor(this);
+            return;
+        }
+
+        pendingStart = new Runnable() {
+            @Override
+            public void run() {
+                pendingStart = null;
+                // Cancelled while waiting, no need to start it at all
+                if (!searcher.isCancelled()) {
+                    searcher.executeOnExecutor(SearchScheduler.this);
+                }
+            }
+        };
+        handler.postDelayed(pendingStart, delay);
+    }
+
+    /**
+     * Forget the searcher waiting to start, if any
+     */
+    @MainThread
+    public void cancelPending() {
+        if (pendingStart != null) {
+            handler.removeCallbacks(pendingStart);
+            pendingStart = null;
+        }
+    }
+
+    /**
+     * Record how long a search took, from start to results displayed
+     */
+    @MainThread
+    void recordLatency(long time) {
+        averageLatency += LATENCY_SMOOTHING * (time - averageLatency);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        thread.execute(new Runnable() {
+            @Override
+            public void run() {
+                runningCount += 1;
+                try {
+                    command.run();
+                } finally {
+                    runningCount -= 1;
+                }
+            }
+        });
+    }
+}
@@ -1,7 +1,6 @@
 package fr.neamar.kiss.searcher;
 
 
-import android.content.Context;
 import android.os.AsyncTask;
 import android.util.Log;
 
@@ -9,23 +8,28 @@ import androidx.annotation.CallSuper;
 
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.PriorityQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 import fr.neamar.kiss.KissApplication;
 import fr.neamar.kiss.MainActivity;
 import fr.neamar.kiss.pojo.Pojo;
-import fr.neamar.kiss.pojo.PojoComparator;
 import fr.neamar.kiss.result.Result;
 
 public abstract class Searcher extends AsyncTask<Void, Result, Void> {
-    // define a different thread than the default AsyncTask thread or else we will block everything else that uses AsyncTask while we search
-    public static final ExecutorService SEARCH_THREAD = Executors.newSingleThreadExecutor();
+    public static final SearchScheduler SEARCH_SCHEDULER = new SearchScheduler();
+    /**
+     * Providers scanning their pojos check for cancellation every time this many pojos are scanned
+     */
+    public static final int CANCELLATION_CHECK_INTERVAL = 256;
     static final int DEFAULT_MAX_RESULTS = 50;
     final WeakReference<MainActivity> activityWeakReference;
-    private final PriorityQueue<Pojo> processedPojos;
+    /**
+     * Best results so far, created once the max result count is known
+     */
+    private TopK processedPojos;
+    /**
+     * Results of the provider running on the current thread, see {@link #beginLocalResults()}
+     */
+    private final ThreadLocal<TopK> localPojos = new ThreadLocal<>();
     private long start;
     /**
      * Set to true when we are simply refreshing current results (scroll will not be reset)
@@ -38,11 +42,13 @@ public abstract class Searcher extends AsyncTask<Void, Result, Void> {
         super();
         this.query = query;
         this.activityWeakReference = new WeakReference<>(activity);
-        this.processedPojos = getPojoProcessor(activity);
     }
 
-    PriorityQueue<Pojo> getPojoProcessor(Context context) {
-        return new PriorityQueue<>(DEFAULT_MAX_RESULTS, new PojoComparator());
+    /**
+     * @return a collector keeping the results to display, the best ones by default
+     */
+    TopK getPojoProcessor() {
+        return new TopK(getMaxResultCount(), false);
     }
 
     int getMaxResultCount() {
@@ -50,9 +56,14 @@ public abstract class Searcher extends AsyncTask<Void, Result, Void> {
     }
 
     /**
-     * This is called from the background thread by the providers
+     * This is called from the background threads by the providers, possibly concurrently.
+     * The pojo itself is not modified, its relevance for this search is only known by the searcher.
+     *
+     * @param pojo      pojo matching the query
+     * @param relevance how relevant the pojo is for the query, higher is better
+     * @return false if the search is over and the provider should stop
      */
-    public boolean addResult(Pojo... pojos) {
+    public boolean addResult(Pojo pojo, int relevance) {
         if (isCancelled())
             return false;
 
@@ -60,19 +71,46 @@ public abstract class Searcher extends AsyncTask<Void, Result, Void> {
         if (activity == null)
             return false;
 
-        Collections.addAll(this.processedPojos, pojos);
-        int maxResults = getMaxResultCount();
-        while (this.processedPojos.size() > maxResults)
-            this.processedPojos.poll();
+        TopK local = localPojos.get();
+        if (local != null) {
+            local.offer(pojo, relevance);
+        } else {
+            synchronized (processedPojos) {
+                processedPojos.offer(pojo, relevance);
+            }
+        }
 
         return true;
     }
 
+    /**
+     * Until {@link #mergeLocalResults()}, results added from the current thread are kept
+     * in a queue of their own, so that concurrent providers don't contend on a single lock
+     */
+    public void beginLocalResults() {
+        localPojos.set(getPojoProcessor());
+    }
+
+    /**
+     * Merge the best results added from the current thread since {@link #beginLocalResults()}
+     */
+    public void mergeLocalResults() {
+        TopK local = localPojos.get();
+        localPojos.remove();
+        if (local == null || local.size() == 0 || isCancelled())
+            return;
+
+        synchronized (processedPojos) {
+            processedPojos.addAll(local);
+        }
+    }
+
     @CallSuper
     @Override
     protected void onPreExecute() {
         super.onPreExecute();
         start = System.currentTimeMillis();
+        processedPojos = getPojoProcessor();
 
         displayActivityLoader();
     }
@@ -94,13 +132,17 @@ public abstract class Searcher extends AsyncTask<Void, Result, Void> {
         // Loader should still be displayed until all the providers have finished loading
         activity.displayLoader(!KissApplication.getApplication(activity).getDataHandler().allProvidersHaveLoaded);
 
-        if (this.processedPojos.isEmpty()) {
+        if (this.processedPojos.size() == 0) {
             activity.adapter.clear();
         } else {
-            PriorityQueue<Pojo> queue = this.processedPojos;
-            ArrayList<Result> results = new ArrayList<>(queue.size());
-            while (queue.peek() != null) {
-                results.add(Result.fromPojo(activity, queue.poll()));
+            // Only the pojos actually displayed become results
+            int count = this.processedPojos.size();
+            Pojo[] pojos = new Pojo[count];
+            int[] relevances = new int[count];
+            this.processedPojos.drain(pojos, relevances);
+            ArrayList<Result> results = new ArrayList<>(count);
+            for (int i = 0; i < count; i += 1) {
+                results.add(Result.fromPojo(activity, pojos[i], relevances[i]));
             }
 
             activity.beforeListChange();
@@ -113,6 +155,7 @@ public abstract class Searcher extends AsyncTask<Void, Result, Void> {
         activity.resetTask();
 
         long time = System.currentTimeMillis() - start;
+        SEARCH_SCHEDULER.recordLatency(time);
         Log.v("Timing", "Time to run query `" + query + "` on " + getClass().getSimpleName() + " to completion: " + time + "ms");
     }
 
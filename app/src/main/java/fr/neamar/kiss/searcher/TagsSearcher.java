@@ -19,22 +19,20 @@ public class TagsSearcher extends Searcher
 	}
 
 	@Override
-	public boolean addResult(Pojo... pojos) {
-		for (Pojo pojo : pojos) {
-			if (!(pojo instanceof PojoWithTags)) {
-				continue;
-			}
-			PojoWithTags pojoWithTags = (PojoWithTags) pojo;
-			if (pojoWithTags.getTags() == null || pojoWithTags.getTags().isEmpty()) {
-				continue;
-			}
-
-			if (!pojoWithTags.getTags().contains(query)) {
-				continue;
-			}
-
-			super.addResult(pojo);
+	public boolean addResult(Pojo pojo, int relevance) {
+		if (!(pojo instanceof PojoWithTags)) {
+			return false;
 		}
+		PojoWithTags pojoWithTags = (PojoWithTags) pojo;
+		if (pojoWithTags.getTags() == null || pojoWithTags.getTags().isEmpty()) {
+			return false;
+		}
+
+		if (!pojoWithTags.getTags().contains(query)) {
+			return false;
+		}
+
+		super.addResult(pojo, relevance);
 		return false;
 	}
 
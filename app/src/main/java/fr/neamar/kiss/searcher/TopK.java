@@ -0,0 +1,145 @@
+package fr.neamar.kiss.searcher;
+
+import java.util.Arrays;
+
+import fr.neamar.kiss.pojo.Pojo;
+import fr.neamar.kiss.pojo.PojoComparator;
+
+/**
+ * Keep the best scored pojos of a search.
+ * <p>
+ * Scores are stored next to the pojos in a min-heap of primitive arrays: a candidate worse than
+ * the current worst of a full collector is rejected without allocating anything,
+ * and pojos themselves are never modified, so the same pojo can be scored by concurrent searches.
+ * Equal scores are ordered by name, like results always were.
+ */
+class TopK {
+    private static final int INITIAL_SIZE = 64;
+    private static final PojoComparator NAME_COMPARATOR = new PojoComparator();
+
+    private final int capacity;
+    private final boolean reversed;
+    private int[] scores;
+    private Pojo[] pojos;
+    private int size = 0;
+
+    /**
+     * @param capacity maximum number of pojos kept
+     * @param reversed true to keep the worst pojos instead
+     */
+    TopK(int capacity, boolean reversed) {
+        this.capacity = capacity;
+        this.reversed = reversed;
+        int initialSize = Math.max(1, Math.min(capacity, INITIAL_SIZE));
+        scores = new int[initialSize];
+        pojos = new Pojo[initialSize];
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return false if the pojo was not kept, because capacity is reached with better pojos
+     */
+    boolean offer(Pojo pojo, int score) {
+        if (capacity <= 0) {
+            return false;
+        }
+
+        if (size == capacity) {
+            if (compare(score, pojo, scores[0], pojos[0]) <= 0) {
+                return false;
+            }
+            // Replace the worst one
+            scores[0] = score;
+            pojos[0] = pojo;
+            siftDown(0);
+            return true;
+        }
+
+        if (size == scores.length) {
+            int newSize = (int) Math.min(capacity, scores.length * 2L);
+            scores = Arrays.copyOf(scores, newSize);
+            pojos = Arrays.copyOf(pojos, newSize);
+        }
+        scores[size] = score;
+        pojos[size] = pojo;
+        siftUp(size);
+        size += 1;
+        return true;
+    }
+
+    /**
+     * Offer all the pojos kept by another collector
+     */
+    void addAll(TopK other) {
+        for (int i = 0; i < other.size; i += 1) {
+            offer(other.pojos[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * Empty the collector, worst pojo first
+     *
+     * @param outPojos  receives the pojos, must be at least {@link #size()} long
+     * @param outScores receives their scores, must be at least {@link #size()} long
+     */
+    void drain(Pojo[] outPojos, int[] outScores) {
+        int count = size;
+        for (int i = 0; i < count; i += 1) {
+            outPojos[i] = pojos[0];
+            outScores[i] = scores[0];
+
+            size -= 1;
+            scores[0] = scores[size];
+            pojos[0] = pojos[size];
+            pojos[size] = null;
+            if (size > 0) {
+                siftDown(0);
+            }
+        }
+    }
+
+    private int compare(int scoreA, Pojo a, int scoreB, Pojo b) {
+        int comparison = scoreA != scoreB ? Integer.compare(scoreA, scoreB) : NAME_COMPARATOR.compare(a, b);
+        return reversed ? -comparison : comparison;
+    }
+
+    private void siftUp(int index) {
+        int score = scores[index];
+        Pojo pojo = pojos[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (compare(score, pojo, scores[parent], pojos[parent]) >= 0) {
+                break;
+            }
+            scores[index] = scores[parent];
+            pojos[index] = pojos[parent];
+            index = parent;
+        }
+        scores[index] = score;
+        pojos[index] = pojo;
+    }
+
+    private void siftDown(int index) {
+        int score = scores[index];
+        Pojo pojo = pojos[index];
+        int half = size >>> 1;
+        while (index < half) {
+            int child = 2 * index + 1;
+            int right = child + 1;
+            if (right < size && compare(scores[right], pojos[right], scores[child], pojos[child]) < 0) {
+                child = right;
+            }
+            if (compare(score, pojo, scores[child], pojos[child]) <= 0) {
+                break;
+            }
+            scores[index] = scores[child];
+            pojos[index] = pojos[child];
+            index = child;
+        }
+        scores[index] = score;
+        pojos[index] = pojo;
+    }
+}
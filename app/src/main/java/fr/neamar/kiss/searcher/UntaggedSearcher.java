@@ -36,7 +36,9 @@ public class UntaggedSearcher extends Searcher {
             }
             iterator.remove();
         }
-        this.addResult(results.toArray(new Pojo[0]));
+        for (Pojo pojo : results) {
+            this.addResult(pojo, 0);
+        }
         return null;
     }
 }
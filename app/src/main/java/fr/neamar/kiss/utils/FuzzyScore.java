@@ -12,10 +12,46 @@ import java.util.List;
  * match("otw", "Power of the Wild", info) = true, info.score = 14
  * match("otw", "Druid of the Claw", info) = true, info.score = -3
  * match("otw", "Frostwolf Grunt", info) = true, info.score = -13
+ * <p>
+ * The matching loop only works on primitive values and does not allocate, so a single instance
+ * can be used to score every candidate of a provider for the current query.
  */
 public class FuzzyScore {
+    /**
+     * Score returned by {@link #score(int[])} and {@link #scoreAll(int[][], int[])} when the text
+     * does not match the pattern
+     */
+    public static final int NO_MATCH = Integer.MIN_VALUE;
+
+    /**
+     * Sentinel for "no letter", codepoints are never negative
+     */
+    private static final int NONE = -1;
+
+    /**
+     * Character classes, see {@link #CHAR_CLASS}
+     */
+    private static final byte CLASS_UPPER = 1;
+    private static final byte CLASS_LOWER = 2;
+    private static final byte CLASS_SEPARATOR = 4;
+
+    /**
+     * Codepoints below this value have their lower case and class precomputed
+     * (covers Latin-1 and Latin Extended-A/B, i.e. most names once normalized)
+     */
+    private static final int TABLE_SIZE = 0x250;
+    private static final int[] CHAR_LOWER = new int[TABLE_SIZE];
+    private static final byte[] CHAR_CLASS = new byte[TABLE_SIZE];
+
+    static {
+        for (int codepoint = 0; codepoint < TABLE_SIZE; codepoint += 1) {
+            int lower = Character.toLowerCase(codepoint);
+            CHAR_LOWER[codepoint] = lower;
+            CHAR_CLASS[codepoint] = computeCharClass(codepoint, lower);
+        }
+    }
+
     private final int patternLength;
-    private final int[] patternChar;
     private final int[] patternLower;
     /**
      * bonus for adjacent matches
@@ -47,10 +83,8 @@ public class FuzzyScore {
     public FuzzyScore(int[] pattern, boolean detailedMatchIndices) {
         super();
         patternLength = pattern.length;
-        patternChar = new int[patternLength];
         patternLower = new int[patternLength];
         for (int i = 0; i < patternLower.length; i += 1) {
-            patternChar[i] = pattern[i];
             patternLower[i] = Character.toLowerCase(pattern[i]);
         }
         adjacency_bonus = 10;
@@ -117,50 +151,97 @@ public class FuzzyScore {
      * @return true if each character in pattern is found sequentially within text
      */
     public MatchInfo match(int[] text) {
+        int score = computeScore(text, matchInfo);
+
+        matchInfo.match = score != NO_MATCH;
+        if (matchInfo.match) {
+            matchInfo.score = score;
+        }
+        return matchInfo;
+    }
+
+    /**
+     * Same as {@link #match(int[])}, without touching the shared {@link MatchInfo}
+     *
+     * @param text string converted to codepoints
+     * @return the score of the match, or {@link #NO_MATCH}
+     */
+    public int score(int[] text) {
+        return computeScore(text, null);
+    }
+
+    /**
+     * Score a whole batch of texts against the pattern
+     *
+     * @param corpus    texts converted to codepoints, null entries never match
+     * @param outScores receives the score of each text, or {@link #NO_MATCH}.
+     *                  Must be at least as long as corpus.
+     * @return number of texts matching the pattern
+     */
+    public int scoreAll(int[][] corpus, int[] outScores) {
+        int matches = 0;
+        for (int i = 0; i < corpus.length; i += 1) {
+            int[] text = corpus[i];
+            int score = text == null ? NO_MATCH : computeScore(text, null);
+            outScores[i] = score;
+            if (score != NO_MATCH) {
+                matches += 1;
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @param text      string converted to codepoints
+     * @param indexSink where to record the indices of matched letters, may be null
+     * @return the score of the match, or {@link #NO_MATCH}
+     */
+    private int computeScore(int[] text, MatchInfo indexSink) {
         // Loop variables
         int score = 0;
         int patternIdx = 0;
-        int strIdx = 0;
+        int patternLower = patternLength != 0 ? this.patternLower[0] : NONE;
         int strLength = text.length;
         boolean prevMatched = false;
         boolean prevLower = false;
         boolean prevSeparator = true;       // true so if first letter match gets separator bonus
 
         // Use "best" matched letter if multiple string letters match the pattern
-        Integer bestLetter = null;
-        Integer bestLower = null;
-        Integer bestLetterIdx = null;
+        int bestLower = NONE;
+        int bestLetterIdx = NONE;
         int bestLetterScore = 0;
 
-        if (matchInfo.matchedIndices != null) {
-            matchInfo.matchedIndices.clear();
+        boolean recordIndices = indexSink != null && indexSink.matchedIndices != null;
+        if (recordIndices) {
+            indexSink.matchedCount = 0;
         }
 
         // Loop over strings
-        while (strIdx != strLength) {
-            Integer patternChar = null;
-            Integer patternLower = null;
-            if (patternIdx != patternLength) {
-                patternChar = this.patternChar[patternIdx];
-                patternLower = this.patternLower[patternIdx];
-            }
+        for (int strIdx = 0; strIdx != strLength; ++strIdx) {
             int strChar = text[strIdx];
-            int strLower = Character.toLowerCase(strChar);
-            int strUpper = Character.toUpperCase(strChar);
+            int strLower;
+            int strClass;
+            if (strChar < TABLE_SIZE) {
+                strLower = CHAR_LOWER[strChar];
+                strClass = CHAR_CLASS[strChar];
+            } else {
+                strLower = Character.toLowerCase(strChar);
+                strClass = computeCharClass(strChar, strLower);
+            }
 
-            boolean nextMatch = patternChar != null && patternLower == strLower;
-            boolean rematch = bestLetter != null && bestLower == strLower;
+            // patternLower is NONE once the whole pattern has been matched, strLower never is
+            boolean nextMatch = patternLower == strLower;
+            boolean rematch = bestLower == strLower;
 
-            boolean advanced = nextMatch && bestLetter != null;
-            boolean patternRepeat = bestLetter != null && patternChar != null && patternLower.equals(bestLower);
+            boolean advanced = nextMatch && bestLower != NONE;
+            boolean patternRepeat = bestLower != NONE && patternLower == bestLower;
             if (advanced || patternRepeat) {
                 score += bestLetterScore;
-                if (matchInfo.matchedIndices != null) {
-                    matchInfo.matchedIndices.add(bestLetterIdx);
+                if (recordIndices) {
+                    indexSink.addMatchedIndex(bestLetterIdx);
                 }
-                bestLetter = null;
-                bestLower = null;
-                bestLetterIdx = null;
+                bestLower = NONE;
+                bestLetterIdx = NONE;
                 bestLetterScore = 0;
             }
 
@@ -183,21 +264,22 @@ public class FuzzyScore {
                     newScore += separator_bonus;
 
                 // Apply bonus across camel case boundaries. Includes "clever" isLetter check.
-                if (prevLower && strChar == strUpper && strLower != strUpper)
+                if (prevLower && (strClass & CLASS_UPPER) != 0)
                     newScore += camel_bonus;
 
                 // Update pattern index IF the next pattern letter was matched
-                if (nextMatch)
+                if (nextMatch) {
                     ++patternIdx;
+                    patternLower = patternIdx != patternLength ? this.patternLower[patternIdx] : NONE;
+                }
 
                 // Update best letter in text which may be for a "next" letter or a "rematch"
                 if (newScore >= bestLetterScore) {
 
                     // Apply penalty for now skipped letter
-                    if (bestLetter != null)
+                    if (bestLower != NONE)
                         score += unmatched_letter_penalty;
 
-                    bestLetter = strChar;
                     bestLower = strLower;
                     bestLetterIdx = strIdx;
                     bestLetterScore = newScore;
@@ -210,25 +292,36 @@ public class FuzzyScore {
             }
 
             // Includes "clever" isLetter check.
-            prevLower = strChar == strLower && strLower != strUpper;
-            prevSeparator = Character.isWhitespace(strChar);
-
-            ++strIdx;
+            prevLower = (strClass & CLASS_LOWER) != 0;
+            prevSeparator = (strClass & CLASS_SEPARATOR) != 0;
         }
 
         // Apply score for last match
-        if (bestLetter != null) {
+        if (bestLower != NONE) {
             score += bestLetterScore;
-            if (matchInfo.matchedIndices != null) {
-                matchInfo.matchedIndices.add(bestLetterIdx);
+            if (recordIndices) {
+                indexSink.addMatchedIndex(bestLetterIdx);
             }
         }
 
-        matchInfo.match = patternIdx == patternLength;
-        if (matchInfo.match) {
-            matchInfo.score = score;
-        }
-        return matchInfo;
+        return patternIdx == patternLength ? score : NO_MATCH;
+    }
+
+    /**
+     * Upper: codepoint is its own upper case, and has a different lower case.
+     * Lower: codepoint is its own lower case, and has a different upper case.
+     * Separator: codepoint is a whitespace.
+     */
+    private static byte computeCharClass(int codepoint, int lower) {
+        int upper = Character.toUpperCase(codepoint);
+        byte charClass = 0;
+        if (codepoint == upper && lower != upper)
+            charClass |= CLASS_UPPER;
+        if (codepoint == lower && lower != upper)
+            charClass |= CLASS_LOWER;
+        if (Character.isWhitespace(codepoint))
+            charClass |= CLASS_SEPARATOR;
+        return charClass;
     }
 
     public static class MatchInfo {
@@ -238,28 +331,39 @@ public class FuzzyScore {
          */
         public int score;
         public boolean match;
-        final ArrayList<Integer> matchedIndices;
+        int[] matchedIndices;
+        int matchedCount = 0;
 
         MatchInfo() {
             matchedIndices = null;
         }
 
         MatchInfo(int patternLength) {
-            matchedIndices = new ArrayList<>(patternLength);
+            matchedIndices = new int[Math.max(patternLength, 1)];
+        }
+
+        private void addMatchedIndex(int index) {
+            if (matchedCount == matchedIndices.length) {
+                int[] indices = new int[matchedIndices.length * 2];
+                System.arraycopy(matchedIndices, 0, indices, 0, matchedCount);
+                matchedIndices = indices;
+            }
+            matchedIndices[matchedCount] = index;
+            matchedCount += 1;
         }
 
         public List<Pair<Integer, Integer>> getMatchedSequences() {
             assert this.matchedIndices != null;
             // compute pair match indices
-            List<Pair<Integer, Integer>> positions = new ArrayList<>(this.matchedIndices.size());
-            int start = this.matchedIndices.get(0);
+            List<Pair<Integer, Integer>> positions = new ArrayList<>(this.matchedCount);
+            int start = this.matchedIndices[0];
             int end = start + 1;
-            for (int i = 1; i < this.matchedIndices.size(); i += 1) {
-                if (end == this.matchedIndices.get(i)) {
+            for (int i = 1; i < this.matchedCount; i += 1) {
+                if (end == this.matchedIndices[i]) {
                     end += 1;
                 } else {
                     positions.add(new Pair<>(start, end));
-                    start = this.matchedIndices.get(i);
+                    start = this.matchedIndices[i];
                     end = start + 1;
                 }
             }
@@ -0,0 +1,110 @@
+package fr.neamar.kiss.utils;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Helpers shared by the binary caches (providers snapshots, icons packs)
+ */
+public final class SnapshotFile {
+    private static final String TAG = "SnapshotFile";
+
+    /**
+     * Snapshots are written in the background one after the other, in the order they were saved,
+     * so that an older list never overwrites a newer one
+     */
+    public static final ExecutorService WRITER = Executors.newSingleThreadExecutor();
+
+    public interface Writer {
+        void write(DataOutputStream output) throws IOException;
+    }
+
+    private SnapshotFile() {
+    }
+
+    /**
+     * @return content of the file, mapped in memory
+     */
+    public static ByteBuffer map(File file) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            // The mapping stays valid once the file is closed
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * Write the file, replacing the previous one only once the new one is complete
+     *
+     * @return true if the file was replaced
+     */
+    public static boolean write(File file, Writer writer) {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+            writer.write(output);
+            output.close();
+            output = null;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write " + file.getName(), e);
+            closeQuietly(output);
+            //noinspection ResultOfMethodCallIgnored
+            temporaryFile.delete();
+            return false;
+        }
+
+        if (!temporaryFile.renameTo(file)) {
+            Log.w(TAG, "Unable to replace " + file.getName());
+            return false;
+        }
+        return true;
+    }
+
+    public static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+        }
+    }
+
+    /**
+     * Write a string, which may be null
+     */
+    public static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        output.writeInt(value.length());
+        output.writeChars(value);
+    }
+
+    public static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        char[] chars = new char[length];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + chars.length * 2);
+        return new String(chars);
+    }
+}
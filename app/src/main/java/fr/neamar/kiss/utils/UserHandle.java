@@ -44,6 +44,13 @@ public class UserHandle {
     }
 
 
+    /**
+     * @return serial number of the user, 0 for the current user
+     */
+    public long getSerial() {
+        return this.serial;
+    }
+
     public boolean isCurrentUser() {
         return (this.handle == null);
     }
@@ -0,0 +1,138 @@
+package fr.neamar.kiss.dataprovider;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+import fr.neamar.kiss.normalizer.PhoneNormalizer;
+import fr.neamar.kiss.normalizer.StringNormalizer;
+import fr.neamar.kiss.pojo.ContactsPojo;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PhoneIndexTest {
+	private static final List<ContactsPojo> contacts = Arrays.asList(
+			contact("Alice", "06 12 34 56 78", 1),
+			contact("Bob", "(310) 555-1234", 1),
+			contact("Carol", "112", 0),
+			contact("Agent 007", "555-0199", 0),
+			contact("Dave", "+33 6 12 34 56 78", 5),
+			contact("Erin", "+1 415 555 0100", 0)
+	);
+	private static final PhoneIndex index = new PhoneIndex(contacts);
+
+	@ParameterizedTest
+	@MethodSource("phoneProvider")
+	public void testFindByPhone(String phone, String name) {
+		ContactsPojo contact = index.findByPhone(PhoneNormalizer.simplifyPhoneNumber(phone));
+
+		if (name == null) {
+			assertThat(contact, is(nullValue()));
+		} else {
+			assertThat(contact.getName(), is(name));
+		}
+	}
+
+	@ParameterizedTest
+	@MethodSource("countryCodeEndingInZeroProvider")
+	public void testFindByPhoneWithCountryCodeEndingInZero(String phone, String name) {
+		// The 0 of the country code is the trunk prefix of the national number
+		PhoneIndex index = new PhoneIndex(Arrays.asList(
+				contact("Turkey", "+90 532 123 45 67", 0),
+				contact("Romania", "0721 234 567", 0),
+				contact("Malaysia", "+60 12 345 6789", 0),
+				contact("Egypt", "010 1234 5678", 0)
+		));
+
+		assertThat(index.findByPhone(PhoneNormalizer.simplifyPhoneNumber(phone)).getName(), is(name));
+	}
+
+	@Test
+	public void testGetCandidates() {
+		// Contacts with all the digit triplets, and the ones with digits in their name
+		assertThat(names(index.getCandidates(codePoints("3456"))), contains("Alice", "Agent 007", "Dave"));
+		assertThat(names(index.getCandidates(codePoints("5551"))), contains("Bob", "Agent 007"));
+		assertThat(names(index.getCandidates(codePoints("999"))), contains("Agent 007"));
+
+		// Too short, or not only digits
+		assertThat(index.getCandidates(codePoints("12")), is(nullValue()));
+		assertThat(index.getCandidates(codePoints("12a4")), is(nullValue()));
+	}
+
+	@Test
+	public void testGetCandidatesMatchesSubstrings() {
+		// Every contact whose number contains the query is a candidate
+		List<ContactsPojo> many = new ArrayList<>();
+		for (int i = 0; i < 200; i += 1) {
+			many.add(contact("Contact", String.format("+33 6 %08d", i * 7919), 0));
+		}
+		PhoneIndex manyIndex = new PhoneIndex(many);
+
+		for (String query : new String[]{"123", "0007", "791", "63311", "3306"}) {
+			List<ContactsPojo> candidates = manyIndex.getCandidates(codePoints(query));
+			for (ContactsPojo contact : many) {
+				String digits = contact.phone.replaceAll("[^0-9]", "");
+				assertThat(query + " in " + digits, candidates.contains(contact), is(digits.contains(query)));
+			}
+		}
+	}
+
+	private static Stream<Arguments> phoneProvider() {
+		return Stream.of(
+				// Same number, with or without country code or trunk prefix
+				Arguments.of("06 12 34 56 78", "Alice"),
+				Arguments.of("+33 6 12 34 56 78", "Dave"),
+				Arguments.of("0033 6 12 34 56 78", "Dave"),
+				Arguments.of("310-555-1234", "Bob"),
+				Arguments.of("+1 310 555 1234", "Bob"),
+				Arguments.of("1 310 555 1234", "Bob"),
+				Arguments.of("011 1 310 555 1234", "Bob"),
+				Arguments.of("415 555 0100", "Erin"),
+				// Same subscriber number in another area
+				Arguments.of("212-555-1234", null),
+				Arguments.of("07 12 34 56 78", null),
+				// Short numbers must be equal
+				Arguments.of("112", "Carol"),
+				Arguments.of("1112", null),
+				Arguments.of("12", null),
+				Arguments.of("", null)
+		);
+	}
+
+	private static Stream<Arguments> countryCodeEndingInZeroProvider() {
+		return Stream.of(
+				Arguments.of("0532 123 45 67", "Turkey"),
+				Arguments.of("+40 721 234 567", "Romania"),
+				Arguments.of("012 345 6789", "Malaysia"),
+				Arguments.of("+20 10 1234 5678", "Egypt")
+		);
+	}
+
+	private static ContactsPojo contact(String name, String phone, int timesContacted) {
+		ContactsPojo contact = new ContactsPojo("contact://" + name, 0, name, phone,
+				PhoneNormalizer.simplifyPhoneNumber(phone), null, true, timesContacted, false, false);
+		contact.setName(name, true);
+		return contact;
+	}
+
+	private static List<String> names(List<ContactsPojo> contacts) {
+		List<String> names = new ArrayList<>();
+		for (ContactsPojo contact : contacts) {
+			names.add(contact.getName());
+		}
+		return names;
+	}
+
+	private static int[] codePoints(String text) {
+		return StringNormalizer.normalizeWithResult(text, false).codePoints;
+	}
+}
@@ -0,0 +1,169 @@
+package fr.neamar.kiss.dataprovider;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import fr.neamar.kiss.normalizer.PhoneNormalizer;
+import fr.neamar.kiss.normalizer.StringNormalizer;
+import fr.neamar.kiss.pojo.ContactsPojo;
+import fr.neamar.kiss.utils.FuzzyScore;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class PojoIndexTest {
+	private static final String[] SYLLABLES = {"ka", "ki", "su", "mé", "lo", "ra", "ne", "to", "bi", "an", "Ço", "ul"};
+
+	@Test
+	public void testGetCandidates() {
+		List<ContactsPojo> contacts = Arrays.asList(
+				contact("KISS Launcher", null, "0612345678"),
+				contact("Calendar", "agenda", ""),
+				contact("Élodie", null, "")
+		);
+		PojoIndex<ContactsPojo> index = new PojoIndex<>(contacts);
+
+		// Not built yet
+		assertThat(index.getCandidates(codePoints("kiss")), is(nullValue()));
+
+		index.build();
+		assertThat(names(index.getCandidates(codePoints("kiss"))), contains("KISS Launcher"));
+		assertThat(names(index.getCandidates(codePoints("lnch"))), contains("KISS Launcher"));
+		assertThat(names(index.getCandidates(codePoints("agd"))), contains("Calendar"));
+		assertThat(names(index.getCandidates(codePoints("elo"))), contains("Élodie"));
+		assertThat(names(index.getCandidates(codePoints("345"))), contains("KISS Launcher"));
+		assertThat(index.getCandidates(codePoints("xyz")), is(empty()));
+
+		// Too short
+		assertThat(index.getCandidates(codePoints("ki")), is(nullValue()));
+	}
+
+	@Test
+	public void testCandidatesIncludeMatchesAfterUpdates() {
+		Random random = new Random(42);
+		List<ContactsPojo> live = new ArrayList<>();
+		List<ContactsPojo> removed = new ArrayList<>();
+		for (int i = 0; i < 200; i += 1) {
+			live.add(randomContact(random));
+		}
+
+		PojoIndex<ContactsPojo> index = new PojoIndex<>(live);
+		// Added before the build, indexed by it
+		for (int i = 0; i < 20; i += 1) {
+			ContactsPojo contact = randomContact(random);
+			live.add(contact);
+			index.add(contact);
+		}
+		index.build();
+		checkCandidates(index, live, removed, random);
+
+		for (int round = 0; round < 10; round += 1) {
+			// Remove more than added, so that the index is compacted along the way
+			for (int i = 0; i < 30 && !live.isEmpty(); i += 1) {
+				ContactsPojo contact = live.remove(random.nextInt(live.size()));
+				index.remove(contact);
+				removed.add(contact);
+			}
+			for (int i = 0; i < 15; i += 1) {
+				ContactsPojo contact = randomContact(random);
+				live.add(contact);
+				index.add(contact);
+			}
+			// Nicknames changed in place
+			for (int i = 0; i < 10; i += 1) {
+				ContactsPojo contact = live.get(random.nextInt(live.size()));
+				contact.setNickname(randomWord(random));
+				index.update(contact);
+			}
+			checkCandidates(index, live, removed, random);
+		}
+	}
+
+	/**
+	 * Every live pojo matching the query must be a candidate, removed ones never are
+	 */
+	private static void checkCandidates(PojoIndex<ContactsPojo> index, List<ContactsPojo> live, List<ContactsPojo> removed, Random random) {
+		for (int i = 0; i < 50; i += 1) {
+			String query = randomQuery(random);
+			int[] queryCodePoints = codePoints(query);
+			List<ContactsPojo> candidates = index.getCandidates(queryCodePoints);
+			FuzzyScore fuzzyScore = new FuzzyScore(queryCodePoints);
+
+			for (ContactsPojo contact : live) {
+				if (matches(fuzzyScore, contact)) {
+					assertThat(query + " matches " + contact.getName(), candidates.contains(contact), is(true));
+				}
+			}
+			for (ContactsPojo contact : removed) {
+				assertThat(query + " removed " + contact.getName(), candidates.contains(contact), is(false));
+			}
+		}
+	}
+
+	private static boolean matches(FuzzyScore fuzzyScore, ContactsPojo contact) {
+		for (StringNormalizer.Result field : contact.getSearchableFields()) {
+			if (field != null && fuzzyScore.match(field.codePoints).match) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static ContactsPojo randomContact(Random random) {
+		String nickname = random.nextBoolean() ? randomWord(random) : null;
+		return contact(randomWord(random) + " " + randomWord(random), nickname, Integer.toString(random.nextInt(100000)));
+	}
+
+	private static String randomWord(Random random) {
+		StringBuilder word = new StringBuilder();
+		int length = 1 + random.nextInt(3);
+		for (int i = 0; i < length; i += 1) {
+			word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+		}
+		return word.toString();
+	}
+
+	/**
+	 * Subsequence of a word, so that most queries match something
+	 */
+	private static String randomQuery(Random random) {
+		String word = randomWord(random) + randomWord(random) + random.nextInt(1000);
+		StringBuilder query = new StringBuilder();
+		for (int i = 0; i < word.length(); i += 1) {
+			if (random.nextInt(3) == 0) {
+				query.append(word.charAt(i));
+			}
+		}
+		while (query.length() < PojoIndex.MIN_QUERY_LENGTH) {
+			query.append(word.charAt(random.nextInt(word.length())));
+		}
+		return query.toString();
+	}
+
+	private static ContactsPojo contact(String name, String nickname, String phone) {
+		ContactsPojo contact = new ContactsPojo("contact://" + name, 0, name, phone,
+				PhoneNormalizer.simplifyPhoneNumber(phone), null, true, 0, false, false);
+		contact.setName(name, true);
+		contact.setNickname(nickname);
+		return contact;
+	}
+
+	private static List<String> names(List<ContactsPojo> contacts) {
+		List<String> names = new ArrayList<>();
+		for (ContactsPojo contact : contacts) {
+			names.add(contact.getName());
+		}
+		return names;
+	}
+
+	private static int[] codePoints(String text) {
+		return StringNormalizer.normalizeWithResult(text, false).codePoints;
+	}
+}
@@ -0,0 +1,153 @@
+package fr.neamar.kiss.dataprovider;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import fr.neamar.kiss.normalizer.PhoneNormalizer;
+import fr.neamar.kiss.normalizer.StringNormalizer;
+import fr.neamar.kiss.pojo.ContactsPojo;
+import fr.neamar.kiss.utils.FuzzyScore;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+
+/**
+ * Searching the candidates from the cache must find the same pojos as scanning them all
+ */
+public class QueryCacheTest {
+	private static final String[] SYLLABLES = {"ka", "ki", "su", "mé", "lo", "ra", "ne", "to", "bi", "an", "Ço", "ul"};
+
+	@Test
+	public void testGetCandidates() {
+		List<ContactsPojo> source = Arrays.asList(contact("Calendar", null, ""), contact("Camera", null, ""), contact("Clock", "cal", ""));
+		QueryCache<ContactsPojo> cache = new QueryCache<>();
+
+		assertThat(cache.getCandidates(source, codePoints("ca")), sameInstance(source));
+		List<ContactsPojo> survivors = search(cache, source, "ca");
+		assertThat(survivors.size(), is(3));
+		survivors = search(cache, source, "cal");
+		assertThat(names(survivors), is(Arrays.asList("Calendar", "Clock")));
+
+		// Longer query, and back to a shorter one
+		assertThat(cache.getCandidates(source, codePoints("CALE")), sameInstance(survivors));
+		assertThat(cache.getCandidates(source, codePoints("cal")), sameInstance(survivors));
+		assertThat(cache.getCandidates(source, codePoints("c")), sameInstance(source));
+
+		// Another query, a reloaded provider, a pojo changed in place
+		search(cache, source, "cal");
+		assertThat(cache.getCandidates(source, codePoints("cm")), sameInstance(source));
+		search(cache, source, "cal");
+		List<ContactsPojo> reloaded = new ArrayList<>(source);
+		assertThat(cache.getCandidates(reloaded, codePoints("cale")), sameInstance(reloaded));
+		search(cache, source, "cal");
+		cache.clear();
+		assertThat(cache.getCandidates(source, codePoints("cale")), sameInstance(source));
+	}
+
+	@Test
+	public void testStaleResultsAreIgnored() {
+		List<ContactsPojo> source = Arrays.asList(contact("Calendar", null, ""), contact("Camera", null, ""));
+		List<ContactsPojo> reloaded = new ArrayList<>(source);
+		QueryCache<ContactsPojo> cache = new QueryCache<>();
+
+		cache.getCandidates(source, codePoints("cal"));
+		// The provider reloads while the search runs
+		cache.getCandidates(reloaded, codePoints("c"));
+		cache.put(source, codePoints("cal"), new ArrayList<ContactsPojo>());
+
+		assertThat(cache.getCandidates(reloaded, codePoints("cale")), sameInstance(reloaded));
+	}
+
+	@Test
+	public void testMatchesFullScan() {
+		Random random = new Random(42);
+		List<ContactsPojo> source = new ArrayList<>();
+		for (int i = 0; i < 300; i += 1) {
+			String nickname = random.nextBoolean() ? randomWord(random) : null;
+			source.add(contact(randomWord(random) + " " + randomWord(random), nickname, Integer.toString(random.nextInt(100000))));
+		}
+		QueryCache<ContactsPojo> cache = new QueryCache<>();
+
+		// Typing sessions: keystrokes, backspaces, and now and then a new query
+		StringBuilder query = new StringBuilder();
+		String alphabet = "kisumélorantobÇu 0123456789";
+		for (int i = 0; i < 2000; i += 1) {
+			int action = random.nextInt(10);
+			if (action < 6 || query.length() == 0) {
+				query.append(alphabet.charAt(random.nextInt(alphabet.length())));
+			} else if (action < 9) {
+				query.setLength(query.length() - 1);
+			} else {
+				query.setLength(0);
+			}
+			if (query.length() == 0) {
+				continue;
+			}
+			if (random.nextInt(4) == 0) {
+				// Case changes keep the cached prefixes
+				query.setCharAt(0, Character.toUpperCase(query.charAt(0)));
+			}
+
+			String text = query.toString();
+			assertThat(text, search(cache, source, text), is(match(source, text)));
+		}
+	}
+
+	/**
+	 * Search like a provider does: score the candidates, then store the survivors
+	 */
+	private static List<ContactsPojo> search(QueryCache<ContactsPojo> cache, List<ContactsPojo> source, String query) {
+		int[] queryCodePoints = codePoints(query);
+		List<ContactsPojo> survivors = match(cache.getCandidates(source, queryCodePoints), query);
+		cache.put(source, queryCodePoints, survivors);
+		return survivors;
+	}
+
+	private static List<ContactsPojo> match(List<ContactsPojo> pojos, String query) {
+		FuzzyScore fuzzyScore = new FuzzyScore(codePoints(query));
+		List<ContactsPojo> matches = new ArrayList<>();
+		for (ContactsPojo pojo : pojos) {
+			for (StringNormalizer.Result field : pojo.getSearchableFields()) {
+				if (field != null && fuzzyScore.match(field.codePoints).match) {
+					matches.add(pojo);
+					break;
+				}
+			}
+		}
+		return matches;
+	}
+
+	private static String randomWord(Random random) {
+		StringBuilder word = new StringBuilder();
+		int length = 1 + random.nextInt(3);
+		for (int i = 0; i < length; i += 1) {
+			word.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+		}
+		return word.toString();
+	}
+
+	private static ContactsPojo contact(String name, String nickname, String phone) {
+		ContactsPojo contact = new ContactsPojo("contact://" + name, 0, name, phone,
+				PhoneNormalizer.simplifyPhoneNumber(phone), null, true, 0, false, false);
+		contact.setName(name, true);
+		contact.setNickname(nickname);
+		return contact;
+	}
+
+	private static List<String> names(List<ContactsPojo> contacts) {
+		List<String> names = new ArrayList<>();
+		for (ContactsPojo contact : contacts) {
+			names.add(contact.getName());
+		}
+		return names;
+	}
+
+	private static int[] codePoints(String text) {
+		return StringNormalizer.normalizeWithResult(text, false).codePoints;
+	}
+}
@@ -0,0 +1,221 @@
+package fr.neamar.kiss.db;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Compare the history engine with the history table it replaced, queried the SQL way:
+ * counts and last uses grouped by record over the raw rows
+ */
+public class HistoryEngineTest {
+	private static final long NOW = 1600000000000L;
+	private static final int LIMIT = 20;
+
+	/**
+	 * Raw history rows, by increasing time stamp
+	 */
+	private final List<String> rowRecords = new ArrayList<>();
+	private final List<Long> rowTimeStamps = new ArrayList<>();
+
+	@BeforeEach
+	public void setUp() {
+		Random random = new Random(42);
+		long start = NOW - 60 * HistoryEngine.DAY_MS;
+		long timeStamp = start;
+		for (int i = 0; i < 3000; i += 1) {
+			timeStamp += 1 + random.nextInt((int) (2 * (NOW - start) / 3000));
+			// A few records are used much more than the others
+			rowRecords.add("app://record" + (int) (40 * Math.pow(random.nextDouble(), 2)));
+			rowTimeStamps.add(Math.min(timeStamp, NOW));
+		}
+	}
+
+	@Test
+	public void testMatchesRawHistory() {
+		checkEngine(fromUses());
+		checkEngine(fromDailyHistory());
+	}
+
+	@Test
+	public void testRemove() {
+		HistoryEngine engine = fromUses();
+		String removed = engine.getByFrequency(1).get(0).record;
+		engine.remove(removed);
+		removeRows(removed);
+		checkEngine(engine);
+
+		// Used again after its removal
+		engine.add(removed, NOW);
+		rowRecords.add(removed);
+		rowTimeStamps.add(NOW);
+		checkEngine(engine);
+		assertThat(records(engine.getByRecency(1)), contains(removed));
+	}
+
+	@Test
+	public void testClear() {
+		HistoryEngine engine = fromUses();
+		engine.clear();
+
+		assertThat(engine.size(), is(0));
+		assertThat(engine.getByRecency(LIMIT), is(empty()));
+		assertThat(engine.getByFrequency(LIMIT), is(empty()));
+		assertThat(engine.getSince(0, LIMIT), is(empty()));
+
+		engine.add("app://record1", NOW);
+		assertThat(engine.size(), is(1));
+		assertThat(records(engine.getByFrequency(LIMIT)), contains("app://record1"));
+	}
+
+	private void checkEngine(HistoryEngine engine) {
+		assertThat(engine.size(), is(rowRecords.size()));
+
+		// SELECT record FROM history GROUP BY record ORDER BY MAX(timeStamp) DESC
+		assertThat(records(engine.getByRecency(LIMIT)), is(records(groupByRecord(0), (a, b) -> Long.compare(b.lastUse, a.lastUse))));
+
+		// SELECT record, COUNT(*) FROM history GROUP BY record ORDER BY COUNT(*) DESC, MAX(timeStamp) DESC
+		List<Group> frequency = sort(groupByRecord(0), HistoryEngineTest::compareCounts);
+		assertThat(valued(engine.getByFrequency(LIMIT)), is(valued(frequency)));
+
+		// Same over the rows of the last days, from the start of the first one
+		for (long period : new long[]{36 * 3600000L, 7 * HistoryEngine.DAY_MS, 100 * HistoryEngine.DAY_MS}) {
+			long since = NOW - period;
+			long sinceDay = HistoryEngine.getDay(since) * HistoryEngine.DAY_MS;
+
+			List<Group> adaptive = sort(groupByRecord(sinceDay), HistoryEngineTest::compareCounts);
+			assertThat(valued(engine.getSince(since, LIMIT)), is(valued(adaptive)));
+
+			List<Group> frecency = sort(groupByRecord(sinceDay), (a, b) -> Double.compare(
+					b.count / (NOW - b.lastUse + 1.0), a.count / (NOW - a.lastUse + 1.0)));
+			assertThat(valued(engine.getByFrecency(since, NOW, LIMIT)), is(valued(frecency)));
+		}
+	}
+
+	private HistoryEngine fromUses() {
+		HistoryEngine engine = new HistoryEngine();
+		for (int i = 0; i < rowRecords.size(); i += 1) {
+			engine.add(rowRecords.get(i), rowTimeStamps.get(i));
+		}
+		return engine;
+	}
+
+	/**
+	 * Loaded like DBHelper does, from the rows rolled up by record and day
+	 */
+	private HistoryEngine fromDailyHistory() {
+		TreeMap<Integer, Map<String, Group>> days = new TreeMap<>();
+		for (int i = 0; i < rowRecords.size(); i += 1) {
+			int day = HistoryEngine.getDay(rowTimeStamps.get(i));
+			if (!days.containsKey(day)) {
+				days.put(day, new LinkedHashMap<>());
+			}
+			addRow(days.get(day), rowRecords.get(i), rowTimeStamps.get(i));
+		}
+
+		HistoryEngine engine = new HistoryEngine();
+		for (Map.Entry<Integer, Map<String, Group>> day : days.entrySet()) {
+			for (Group group : day.getValue().values()) {
+				engine.add(group.record, day.getKey(), group.count, group.lastUse);
+			}
+		}
+		return engine;
+	}
+
+	private List<Group> groupByRecord(long since) {
+		Map<String, Group> groups = new LinkedHashMap<>();
+		for (int i = 0; i < rowRecords.size(); i += 1) {
+			if (rowTimeStamps.get(i) >= since) {
+				addRow(groups, rowRecords.get(i), rowTimeStamps.get(i));
+			}
+		}
+		return new ArrayList<>(groups.values());
+	}
+
+	private static void addRow(Map<String, Group> groups, String record, long timeStamp) {
+		Group group = groups.get(record);
+		if (group == null) {
+			group = new Group(record);
+			groups.put(record, group);
+		}
+		group.count += 1;
+		group.lastUse = Math.max(group.lastUse, timeStamp);
+	}
+
+	private void removeRows(String record) {
+		for (int i = rowRecords.size() - 1; i >= 0; i -= 1) {
+			if (rowRecords.get(i).equals(record)) {
+				rowRecords.remove(i);
+				rowTimeStamps.remove(i);
+			}
+		}
+	}
+
+	private static int compareCounts(Group a, Group b) {
+		int comparison = Integer.compare(b.count, a.count);
+		return comparison != 0 ? comparison : Long.compare(b.lastUse, a.lastUse);
+	}
+
+	private static List<Group> sort(List<Group> groups, Comparator<Group> comparator) {
+		Collections.sort(groups, comparator);
+		return groups.subList(0, Math.min(LIMIT, groups.size()));
+	}
+
+	private static List<String> records(List<Group> groups, Comparator<Group> comparator) {
+		List<String> records = new ArrayList<>();
+		for (Group group : sort(groups, comparator)) {
+			records.add(group.record);
+		}
+		return records;
+	}
+
+	private static List<String> records(ArrayList<ValuedHistoryRecord> valuedRecords) {
+		List<String> records = new ArrayList<>();
+		for (ValuedHistoryRecord entry : valuedRecords) {
+			records.add(entry.record);
+		}
+		return records;
+	}
+
+	/**
+	 * @return "record=value" of each entry, to compare records and values at once
+	 */
+	private static List<String> valued(ArrayList<ValuedHistoryRecord> valuedRecords) {
+		List<String> valued = new ArrayList<>();
+		for (ValuedHistoryRecord entry : valuedRecords) {
+			valued.add(entry.record + "=" + entry.value);
+		}
+		return valued;
+	}
+
+	private static List<String> valued(List<Group> groups) {
+		List<String> valued = new ArrayList<>();
+		for (Group group : groups) {
+			valued.add(group.record + "=" + group.count);
+		}
+		return valued;
+	}
+
+	private static final class Group {
+		final String record;
+		int count = 0;
+		long lastUse = 0;
+
+		Group(String record) {
+			this.record = record;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+package fr.neamar.kiss.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.empty;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Compare the trie with the query it replaced:
+ * SELECT record, COUNT(*) FROM history WHERE query LIKE 'prefix%' GROUP BY record ORDER BY COUNT(*) DESC
+ */
+public class QueryHistoryTrieTest {
+	private static final String[] PREFIXES = {"", "a", "A", "ab", "aB", "abc", "b", "ba", "é", "É", "ca", "cal", "zz"};
+
+	private final List<String> rowQueries = new ArrayList<>();
+	private final List<String> rowRecords = new ArrayList<>();
+
+	@Test
+	public void testGetRecords() {
+		QueryHistoryTrie trie = new QueryHistoryTrie();
+		trie.add("Calendar", "app://calendar");
+		trie.add("cal", "app://calendar");
+		trie.add("calc", "app://calculator");
+		trie.add(null, "app://camera");
+
+		assertThat(records(trie.getRecords("CAL", 10)), contains("app://calendar=2", "app://calculator=1"));
+		assertThat(records(trie.getRecords("calc", 10)), contains("app://calculator=1"));
+		assertThat(records(trie.getRecords("cal", 1)), contains("app://calendar=2"));
+		assertThat(trie.getRecords("cam", 10), is(empty()));
+
+		trie.remove("app://calendar");
+		assertThat(records(trie.getRecords("cal", 10)), contains("app://calculator=1"));
+		trie.clear();
+		assertThat(trie.getRecords("", 10), is(empty()));
+	}
+
+	@Test
+	public void testMatchesRawHistory() {
+		Random random = new Random(42);
+		QueryHistoryTrie trie = new QueryHistoryTrie();
+		String[] queries = {"a", "ab", "AB", "abc", "Abcd", "b", "ba", "bac", "é", "Élan", "cal", "Calc", null};
+
+		for (int round = 0; round < 20; round += 1) {
+			for (int i = 0; i < 100; i += 1) {
+				String query = queries[random.nextInt(queries.length)];
+				String record = "app://record" + (int) (30 * Math.pow(random.nextDouble(), 2));
+				trie.add(query, record);
+				rowQueries.add(query);
+				rowRecords.add(record);
+			}
+			if (round % 4 == 3) {
+				String removed = "app://record" + random.nextInt(10);
+				trie.remove(removed);
+				removeRows(removed);
+			}
+
+			// Different limits, so that tops computed for a smaller limit are not reused for a larger one
+			for (int limit : new int[]{3, 10, 50}) {
+				for (String prefix : PREFIXES) {
+					checkRecords(trie.getRecords(prefix, limit), prefix, limit);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Order of records used as many times is not defined, only compare their number of uses
+	 */
+	private void checkRecords(List<ValuedHistoryRecord> records, String prefix, int limit) {
+		Map<String, Integer> counts = new HashMap<>();
+		for (int i = 0; i < rowRecords.size(); i += 1) {
+			if (isLike(rowQueries.get(i), prefix)) {
+				Integer count = counts.get(rowRecords.get(i));
+				counts.put(rowRecords.get(i), count == null ? 1 : count + 1);
+			}
+		}
+		List<Integer> expectedValues = new ArrayList<>(counts.values());
+		Collections.sort(expectedValues, Collections.reverseOrder());
+		expectedValues = expectedValues.subList(0, Math.min(limit, expectedValues.size()));
+
+		List<Integer> values = new ArrayList<>();
+		for (ValuedHistoryRecord entry : records) {
+			values.add(entry.value);
+			assertThat(prefix + " " + entry.record, entry.value, is(counts.get(entry.record)));
+		}
+		assertThat(prefix, values, is(expectedValues));
+	}
+
+	/**
+	 * LIKE 'prefix%', case insensitive for ASCII characters only
+	 */
+	private static boolean isLike(String query, String prefix) {
+		if (query == null || query.length() < prefix.length()) {
+			return false;
+		}
+		for (int i = 0; i < prefix.length(); i += 1) {
+			if (foldAscii(query.charAt(i)) != foldAscii(prefix.charAt(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static char foldAscii(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c - 'A' + 'a') : c;
+	}
+
+	private void removeRows(String record) {
+		for (int i = rowRecords.size() - 1; i >= 0; i -= 1) {
+			if (rowRecords.get(i).equals(record)) {
+				rowRecords.remove(i);
+				rowQueries.remove(i);
+			}
+		}
+	}
+
+	private static List<String> records(List<ValuedHistoryRecord> valuedRecords) {
+		List<String> records = new ArrayList<>();
+		for (ValuedHistoryRecord entry : valuedRecords) {
+			records.add(entry.record + "=" + entry.value);
+		}
+		return records;
+	}
+}
@@ -0,0 +1,124 @@
+package fr.neamar.kiss.searcher;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import fr.neamar.kiss.pojo.Pojo;
+import fr.neamar.kiss.pojo.PojoComparator;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+/**
+ * Compare the collector with sorting every scored pojo, by score then by name, and keeping the last ones
+ */
+public class TopKTest {
+	private static final String[] NAMES = {"Calendar", "calculator", "Camera", "Élan", "Clock", "Contacts", "Chrome", "Ça va"};
+
+	@ParameterizedTest
+	@MethodSource("collectorProvider")
+	public void testOffer(int capacity, int count, boolean reversed) {
+		Random random = new Random(capacity * 31 + count);
+		List<Scored> scored = randomScored(random, count);
+
+		TopK topK = new TopK(capacity, reversed);
+		for (Scored entry : scored) {
+			topK.offer(entry.pojo, entry.score);
+		}
+
+		assertThat(drain(topK), is(expected(scored, capacity, reversed)));
+	}
+
+	@ParameterizedTest
+	@MethodSource("collectorProvider")
+	public void testAddAll(int capacity, int count, boolean reversed) {
+		Random random = new Random(capacity * 17 + count);
+		List<Scored> scored = randomScored(random, count);
+
+		// Like the per-provider collectors of a parallel search
+		TopK topK = new TopK(capacity, reversed);
+		TopK[] locals = {new TopK(capacity, reversed), new TopK(capacity, reversed), new TopK(capacity, reversed)};
+		for (int i = 0; i < scored.size(); i += 1) {
+			locals[i % locals.length].offer(scored.get(i).pojo, scored.get(i).score);
+		}
+		for (TopK local : locals) {
+			topK.addAll(local);
+		}
+
+		assertThat(drain(topK), is(expected(scored, capacity, reversed)));
+	}
+
+	private static Stream<Arguments> collectorProvider() {
+		return Stream.of(
+				Arguments.of(0, 10, false),
+				Arguments.of(1, 10, false),
+				Arguments.of(5, 3, false),
+				Arguments.of(10, 500, false),
+				Arguments.of(10, 500, true),
+				Arguments.of(100, 1000, false),
+				Arguments.of(Integer.MAX_VALUE, 300, false),
+				Arguments.of(Integer.MAX_VALUE, 300, true)
+		);
+	}
+
+	/**
+	 * Scores in a small range, so that many of them are equal and ordered by name
+	 */
+	private static List<Scored> randomScored(Random random, int count) {
+		List<Scored> scored = new ArrayList<>();
+		for (int i = 0; i < count; i += 1) {
+			Pojo pojo = new Pojo("app://" + i) {
+			};
+			pojo.setName(NAMES[random.nextInt(NAMES.length)] + " " + random.nextInt(20));
+			scored.add(new Scored(pojo, random.nextInt(50) - 25));
+		}
+		return scored;
+	}
+
+	/**
+	 * Worst kept pojo first, as drained
+	 */
+	private static List<String> expected(List<Scored> scored, int capacity, boolean reversed) {
+		final PojoComparator nameComparator = new PojoComparator();
+		List<Scored> sorted = new ArrayList<>(scored);
+		Comparator<Scored> comparator = (a, b) -> a.score != b.score ? Integer.compare(a.score, b.score) : nameComparator.compare(a.pojo, b.pojo);
+		Collections.sort(sorted, reversed ? Collections.reverseOrder(comparator) : comparator);
+
+		List<String> expected = new ArrayList<>();
+		for (Scored entry : sorted.subList(Math.max(0, sorted.size() - capacity), sorted.size())) {
+			expected.add(entry.score + " " + entry.pojo.getName());
+		}
+		return expected;
+	}
+
+	private static List<String> drain(TopK topK) {
+		Pojo[] pojos = new Pojo[topK.size()];
+		int[] scores = new int[topK.size()];
+		topK.drain(pojos, scores);
+		assertThat(topK.size(), is(0));
+
+		List<String> drained = new ArrayList<>();
+		for (int i = 0; i < pojos.length; i += 1) {
+			drained.add(scores[i] + " " + pojos[i].getName());
+		}
+		return drained;
+	}
+
+	private static final class Scored {
+		final Pojo pojo;
+		final int score;
+
+		Scored(Pojo pojo, int score) {
+			this.pojo = pojo;
+			this.score = score;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package fr.neamar.kiss.utils;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.Arguments;
+import org.junit.jupiter.params.provider.MethodSource;
+
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class FuzzyScoreTest {
+	@ParameterizedTest
+	@MethodSource("scoreProvider")
+	public void testScore(String pattern, String text, boolean match, int score) {
+		FuzzyScore fuzzyScore = new FuzzyScore(codePoints(pattern));
+		FuzzyScore.MatchInfo matchInfo = fuzzyScore.match(codePoints(text));
+
+		assertThat(matchInfo.match, is(match));
+		if (match) {
+			assertThat(matchInfo.score, is(score));
+			assertThat(fuzzyScore.score(codePoints(text)), is(score));
+		} else {
+			assertThat(fuzzyScore.score(codePoints(text)), is(FuzzyScore.NO_MATCH));
+		}
+	}
+
+	@Test
+	public void testScoreAll() {
+		FuzzyScore fuzzyScore = new FuzzyScore(codePoints("otw"));
+		int[][] corpus = new int[][]{
+				codePoints("Power of the Wild"),
+				codePoints("Settings"),
+				null,
+				codePoints("Frostwolf Grunt")
+		};
+		int[] scores = new int[corpus.length];
+
+		assertThat(fuzzyScore.scoreAll(corpus, scores), is(2));
+		assertThat(scores[0], is(-2));
+		assertThat(scores[1], is(FuzzyScore.NO_MATCH));
+		assertThat(scores[2], is(FuzzyScore.NO_MATCH));
+		assertThat(scores[3], is(-8));
+	}
+
+	private static Stream<Arguments> scoreProvider() {
+		return Stream.of(
+				Arguments.of("otw", "Power of the Wild", true, -2),
+				Arguments.of("otw", "Druid of the Claw", true, -13),
+				Arguments.of("otw", "Frostwolf Grunt", true, -8),
+				Arguments.of("OTW", "power of the wild", true, -2),
+				Arguments.of("gm", "GoogleMaps", true, 8),
+				Arguments.of("kiss", "KISS Launcher", true, 16),
+				Arguments.of("xyz", "KISS Launcher", false, 0),
+				Arguments.of("launcherr", "KISS Launcher", false, 0)
+		);
+	}
+
+	private static int[] codePoints(String text) {
+		return text.codePoints().toArray();
+	}
+}